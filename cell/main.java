@@ -1,12 +1,31 @@
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 
 import net.cell_lang.*;
 
@@ -14,10 +33,23 @@ import net.cell_lang.*;
 class IMDB {
   static int counter;
 
+  // Size of the I/O window used when the CSV files are streamed (--stream)
+  static final int STREAM_WINDOW_SIZE = 1 << 20;
+
+  static boolean streamInput = false;
+
+  static boolean binaryState = false;
+
+  // Only used with --binary
+  static boolean segmentedState = false;
+  static boolean compressedState = false;
+
   public static void main(String[] args) throws Exception {
     int repetitions;
 
-    if (args.length == 3 | args.length == 4) {
+    args = parseOptions(args);
+
+    if (args != null && (args.length == 3 | args.length == 4)) {
       try {
         repetitions = Integer.parseInt(args[1]);
       }
@@ -85,6 +117,35 @@ class IMDB {
     System.out.println();
     System.out.println("or: java -jar imdb-embedded.jar [-r] <repetitions> <input file>");
     System.out.println("  -r   read a previously saved (with the -w or -uw options) state");
+    System.out.println();
+    System.out.println("Options:");
+    System.out.println("  --stream     read the CSV files through a fixed-size window instead of loading them in memory");
+    System.out.println("  --binary     save and load the state in binary format instead of the textual one");
+    System.out.println("  --segmented  with --binary, write each group of relations to its own file, in parallel,");
+    System.out.println("               inside a directory that replaces the output/input file");
+    System.out.println("  --compress   with --segmented, compress the files");
+  }
+
+  // Strips the options from the command line, and returns the remaining arguments,
+  // or null if any of the options is not recognized
+  static String[] parseOptions(String[] args) {
+    List<String> positionalArgs = new ArrayList<String>();
+    for (int i=0 ; i < args.length ; i++) {
+      String arg = args[i];
+      if (!arg.startsWith("--"))
+        positionalArgs.add(arg);
+      else if (arg.equals("--stream"))
+        streamInput = true;
+      else if (arg.equals("--binary"))
+        binaryState = true;
+      else if (arg.equals("--segmented"))
+        segmentedState = true;
+      else if (arg.equals("--compress"))
+        compressedState = true;
+      else
+        return null;
+    }
+    return positionalArgs.toArray(new String[0]);
   }
 
   static void runLoadingTests(String inputFile) throws Exception {
@@ -92,8 +153,18 @@ class IMDB {
 
     long msecs1 = System.currentTimeMillis();
 
-    try (FileReader reader = new FileReader(inputFile)) {
-      moviesDB.load(reader);
+    if (binaryState && segmentedState) {
+      BinaryState.loadSegments(moviesDB, inputFile);
+    }
+    else if (binaryState) {
+      try (FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+        BinaryState.load(moviesDB, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+    }
+    else {
+      try (FileReader reader = new FileReader(inputFile)) {
+        moviesDB.load(reader);
+      }
     }
 
     long msecs2 = System.currentTimeMillis();
@@ -113,12 +184,26 @@ class IMDB {
       long msecs1 = System.currentTimeMillis();
 
       String file = outputFile;
-      if (repetitions > 1 && file.endsWith(".txt")) {
-        file = file.substring(0, file.length() - 4) + String.format("-%02d", i) + ".txt";
+      String ext = binaryState ? ".bin" : ".txt";
+      if (repetitions > 1 && binaryState && segmentedState) {
+        file = file + String.format("-%02d", i);
+      }
+      else if (repetitions > 1 && file.endsWith(ext)) {
+        file = file.substring(0, file.length() - 4) + String.format("-%02d", i) + ext;
       }
 
-      try (FileWriter writer = new FileWriter(file)) {
-        moviesDB.save(writer);
+      if (binaryState && segmentedState) {
+        BinaryState.saveSegments(moviesDB, file, compressedState);
+      }
+      else if (binaryState) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+          BinaryState.save(moviesDB, out);
+        }
+      }
+      else {
+        try (FileWriter writer = new FileWriter(file)) {
+          moviesDB.save(writer);
+        }
       }
 
       long msecs2 = System.currentTimeMillis();
@@ -198,167 +283,168 @@ class IMDB {
   //////////////////////////////////////////////////////////////////////////////
 
   static void readMovies(MoviesDB moviesDB, String path, boolean printSep, int width) throws Exception {
-    byte[] content = Files.readAllBytes(Paths.get(path + "/movies.csv"));
+    try (CsvReader reader = openCsvFile(path + "/movies.csv")) {
+      long msecs1 = System.currentTimeMillis();
 
-    long msecs1 = System.currentTimeMillis();
+      Genre[] empty = new Genre[0];
 
-    Genre[] empty = new Genre[0];
-
-    CsvReader reader = new CsvReader(content);
-    reader.skipLine();
-    while (!reader.eof()) {
-      int id = (int) reader.readLong();
-      reader.skip(';');
-      String name = reader.readString();
-      reader.skip(';');
-      int year = (int) reader.readLong();
-      reader.skip(';');
-      double rank = reader.readDouble();
       reader.skipLine();
+      while (!reader.eof()) {
+        int id = (int) reader.readLong();
+        reader.skip(';');
+        String name = reader.readString();
+        reader.skip(';');
+        int year = (int) reader.readLong();
+        reader.skip(';');
+        double rank = reader.readDouble();
+        reader.skipLine();
+
+        moviesDB.addMovie(id, name, year, rank, empty);
+      }
 
-      moviesDB.addMovie(id, name, year, rank, empty);
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, printSep, width);
     }
-
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
   }
 
   static void readActors(MoviesDB moviesDB, String path, boolean printSep, int width) throws Exception {
-    byte[] content = Files.readAllBytes(Paths.get(path + "/actors.csv"));
+    try (CsvReader reader = openCsvFile(path + "/actors.csv")) {
+      long msecs1 = System.currentTimeMillis();
 
-    long msecs1 = System.currentTimeMillis();
+      boolean indexCreationTriggered = false;
 
-    boolean indexCreationTriggered = false;
-
-    CsvReader reader = new CsvReader(content);
-    reader.skipLine();
-    while (!reader.eof()) {
-      int id = (int) reader.readLong();
-      reader.skip(';');
-      String firstName = reader.readString();
-      reader.skip(';');
-      String lastName = reader.readString();
-      reader.skip(';');
-      String genderStr = reader.readString();
       reader.skipLine();
+      while (!reader.eof()) {
+        int id = (int) reader.readLong();
+        reader.skip(';');
+        String firstName = reader.readString();
+        reader.skip(';');
+        String lastName = reader.readString();
+        reader.skip(';');
+        String genderStr = reader.readString();
+        reader.skipLine();
+
+        Gender gender;
+        if (genderStr.equals("M"))
+          gender = Male.singleton;
+        else if (genderStr.equals("F"))
+          gender = Female.singleton;
+        else
+          throw new RuntimeException();
 
-      Gender gender;
-      if (genderStr.equals("M"))
-        gender = Male.singleton;
-      else if (genderStr.equals("F"))
-        gender = Female.singleton;
-      else
-        throw new RuntimeException();
-
-      moviesDB.addActor(id, firstName, lastName, gender);
+        moviesDB.addActor(id, firstName, lastName, gender);
 
-      if (!indexCreationTriggered) {
-        moviesDB.actorsByFirstName("...");
-        moviesDB.actorsByLastName("...");
-        indexCreationTriggered = true;
+        if (!indexCreationTriggered) {
+          moviesDB.actorsByFirstName("...");
+          moviesDB.actorsByLastName("...");
+          indexCreationTriggered = true;
+        }
       }
-    }
 
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, printSep, width);
+    }
   }
 
   static void readDirectors(MoviesDB moviesDB, String path, boolean printSep, int width) throws Exception {
-    byte[] content = Files.readAllBytes(Paths.get(path + "/directors.csv"));
-
-    long msecs1 = System.currentTimeMillis();
+    try (CsvReader reader = openCsvFile(path + "/directors.csv")) {
+      long msecs1 = System.currentTimeMillis();
 
-    CsvReader reader = new CsvReader(content);
-    reader.skipLine();
-    while (!reader.eof()) {
-      int id = (int) reader.readLong();
-      reader.skip(';');
-      String firstName = reader.readString();
-      reader.skip(';');
-      String lastName = reader.readString();
       reader.skipLine();
+      while (!reader.eof()) {
+        int id = (int) reader.readLong();
+        reader.skip(';');
+        String firstName = reader.readString();
+        reader.skip(';');
+        String lastName = reader.readString();
+        reader.skipLine();
+
+        moviesDB.addDirector(id, firstName, lastName);
+      }
 
-      moviesDB.addDirector(id, firstName, lastName);
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, printSep, width);
     }
-
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
   }
 
   static void readMoviesDirectors(MoviesDB moviesDB, String path, boolean printSep, int width) throws Exception {
-    byte[] content = Files.readAllBytes(Paths.get(path + "/movies_directors.csv"));
-
-    long msecs1 = System.currentTimeMillis();
+    try (CsvReader reader = openCsvFile(path + "/movies_directors.csv")) {
+      long msecs1 = System.currentTimeMillis();
 
-    boolean indexCreationTriggered = false;
+      boolean indexCreationTriggered = false;
 
-    CsvReader reader = new CsvReader(content);
-    reader.skipLine();
-    while (!reader.eof()) {
-      int directorId = (int) reader.readLong();
-      reader.skip(';');
-      int movieId = (int) reader.readLong();
       reader.skipLine();
+      while (!reader.eof()) {
+        int directorId = (int) reader.readLong();
+        reader.skip(';');
+        int movieId = (int) reader.readLong();
+        reader.skipLine();
 
-      moviesDB.addMovieDirector(movieId, directorId);
+        moviesDB.addMovieDirector(movieId, directorId);
 
-      if (!indexCreationTriggered) {
-        moviesDB.directorsOf(0);
-        indexCreationTriggered = true;
+        if (!indexCreationTriggered) {
+          moviesDB.directorsOf(0);
+          indexCreationTriggered = true;
+        }
       }
-    }
 
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, printSep, width);
+    }
   }
 
   static void readMoviesGenres(MoviesDB moviesDB, String path, boolean printSep, int width) throws Exception {
-    byte[] content = Files.readAllBytes(Paths.get(path + "/movies_genres.csv"));
-
-    long msecs1 = System.currentTimeMillis();
+    try (CsvReader reader = openCsvFile(path + "/movies_genres.csv")) {
+      long msecs1 = System.currentTimeMillis();
 
-    CsvReader reader = new CsvReader(content);
-    reader.skipLine();
-    while (!reader.eof()) {
-      int movieId = (int) reader.readLong();
-      reader.skip(';');
-      String genre = reader.readString();
       reader.skipLine();
+      while (!reader.eof()) {
+        int movieId = (int) reader.readLong();
+        reader.skip(';');
+        String genre = reader.readString();
+        reader.skipLine();
 
-      moviesDB.addMovieGenre(movieId, genresMap.get(genre));
-    }
+        moviesDB.addMovieGenre(movieId, genresMap.get(genre));
+      }
 
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, printSep, width);
+    }
   }
 
   static void readRoles(MoviesDB moviesDB, String path, boolean printSep, int width) throws Exception {
-    byte[] content = Files.readAllBytes(Paths.get(path + "/roles.csv"));
-
-    long msecs1 = System.currentTimeMillis();
+    try (CsvReader reader = openCsvFile(path + "/roles.csv")) {
+      long msecs1 = System.currentTimeMillis();
 
-    boolean indexCreationTriggered = false;
+      boolean indexCreationTriggered = false;
 
-    CsvReader reader = new CsvReader(content);
-    reader.skipLine();
-    while (!reader.eof()) {
-      int actorId = (int) reader.readLong();
-      reader.skip(';');
-      int movieId = (int) reader.readLong();
-      reader.skip(';');
-      String role = reader.readString();
       reader.skipLine();
-
-      moviesDB.addMovieActor(movieId, actorId, role.length() != 0 ? role : null);
-
-      if (!indexCreationTriggered) {
-        moviesDB.cast(0);
-        indexCreationTriggered = true;
+      while (!reader.eof()) {
+        int actorId = (int) reader.readLong();
+        reader.skip(';');
+        int movieId = (int) reader.readLong();
+        reader.skip(';');
+        String role = reader.readString();
+        reader.skipLine();
+
+        moviesDB.addMovieActor(movieId, actorId, role.length() != 0 ? role : null);
+
+        if (!indexCreationTriggered) {
+          moviesDB.cast(0);
+          indexCreationTriggered = true;
+        }
       }
+
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, printSep, width);
     }
+  }
 
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
+  static CsvReader openCsvFile(String file) throws Exception {
+    if (streamInput)
+      return new CsvReader(FileChannel.open(Paths.get(file), StandardOpenOption.READ), STREAM_WINDOW_SIZE);
+    else
+      return new CsvReader(Files.readAllBytes(Paths.get(file)));
   }
 
   //////////////////////////////////////////////////////////////////////////////
@@ -709,13 +795,488 @@ class IMDB {
 
 ////////////////////////////////////////////////////////////////////////////////
 
-class CsvReader {
+// Binary alternative to the textual Cell format used by MoviesDB.save() and
+// MoviesDB.load(). Each relation is stored as a set of typed columns, which
+// are exported by the functions defined in embedded.cell. The relations are
+// grouped into segments that are independent of each other (each has its own
+// table of strings, which are stored only once) so that they can be encoded,
+// compressed, written and read back in parallel, either as parts of a single
+// file or each in a file of its own. Restoring the state still goes through
+// the same methods used by the CSV loaders, but without any parsing
+class BinaryState {
+  static final int MAGIC   = 0x43454C4C;
+  static final int VERSION = 2;
+
+  static final String[] SEGMENTS = {"movies", "actors", "directors", "acted_in", "directed", "ranks"};
+
+  static final int MOVIES    = 0;
+  static final int ACTORS    = 1;
+  static final int DIRECTORS = 2;
+  static final int ACTED_IN  = 3;
+  static final int DIRECTED  = 4;
+  static final int RANKS     = 5;
+
+  // Content of all segments. MoviesDB is only accessed by the calling thread,
+  // when the columns are exported or their content inserted into it, while
+  // the segments are encoded and decoded by worker threads, each of which
+  // only touches the fields of its own segment
+  static class Columns {
+    long[]    movieIds;
+    String[]  movieNames;
+    long[]    movieYears;
+    double[]  movieRanks;
+    long[]    genreCounts;
+    String[]  genres;
+
+    long[]    actorIds;
+    String[]  actorFirstNames;
+    String[]  actorLastNames;
+    boolean[] actorIsFemale;
+
+    long[]    directorIds;
+    String[]  directorFirstNames;
+    String[]  directorLastNames;
+
+    // Pairs of (actor, movie) ids, each followed in the roles
+    // column by as many roles as given by the counts column
+    long[]    actedIn;
+    long[]    roleCounts;
+    String[]  roles;
+
+    // Pairs of (director, movie) ids
+    long[]    directed;
+
+    long[]    actorRankIds;
+    double[]  actorRanks;
+    long[]    directorRankIds;
+    double[]  directorRanks;
+  }
+
+  public static void save(MoviesDB moviesDB, DataOutputStream out) throws IOException {
+    Columns columns = export(moviesDB);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    for (int i=0 ; i < SEGMENTS.length ; i++)
+      writeSegment(i, columns, out);
+  }
+
+  public static void load(MoviesDB moviesDB, ByteBuffer in) {
+    if (in.getInt() != MAGIC || in.getInt() != VERSION)
+      throw new RuntimeException();
+    Columns columns = new Columns();
+    for (int i=0 ; i < SEGMENTS.length ; i++)
+      readSegment(i, in, columns);
+    // Anything left over means the file wasn't written by save()
+    if (in.hasRemaining())
+      throw new RuntimeException();
+    insert(moviesDB, columns);
+  }
+
+  // Writes each segment, optionally compressed, to its own file in the given
+  // directory. The segments are encoded and written in parallel
+  public static void saveSegments(MoviesDB moviesDB, String dir, boolean compress) throws Exception {
+    Columns columns = export(moviesDB);
+    Files.createDirectories(Paths.get(dir));
+
+    runInParallel(segment -> {
+      Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+      try (FileChannel channel = FileChannel.open(segmentFile(dir, segment), StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(MAGIC).putInt(VERSION).putInt(compress ? 1 : 0).flip();
+        while (header.hasRemaining())
+          channel.write(header);
+
+        OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+        if (compress)
+          stream = new DeflaterOutputStream(stream, deflater, 1 << 16);
+        DataOutputStream out = new DataOutputStream(stream);
+        writeSegment(segment, columns, out);
+        out.close();
+      }
+      finally {
+        if (deflater != null)
+          deflater.end();
+      }
+    });
+  }
+
+  // Reads back the segments written by saveSegments(), in parallel
+  public static void loadSegments(MoviesDB moviesDB, String dir) throws Exception {
+    Columns columns = new Columns();
+
+    runInParallel(segment -> {
+      ByteBuffer in;
+      try (FileChannel channel = FileChannel.open(segmentFile(dir, segment), StandardOpenOption.READ)) {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        while (header.hasRemaining())
+          if (channel.read(header) == -1)
+            throw new RuntimeException();
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+          throw new RuntimeException();
+        if (header.getInt() != 0) {
+          // The stream doesn't own the inflater, so closing
+          // it doesn't free its native memory: end() does
+          Inflater inflater = new Inflater();
+          try (InflaterInputStream stream = new InflaterInputStream(Channels.newInputStream(channel), inflater, 1 << 16)) {
+            in = ByteBuffer.wrap(stream.readAllBytes());
+          }
+          finally {
+            inflater.end();
+          }
+        }
+        else
+          in = channel.map(FileChannel.MapMode.READ_ONLY, 12, channel.size() - 12);
+      }
+      readSegment(segment, in, columns);
+      if (in.hasRemaining())
+        throw new RuntimeException();
+    });
+
+    insert(moviesDB, columns);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  static Columns export(MoviesDB moviesDB) {
+    Columns columns = new Columns();
+
+    columns.movieIds = moviesDB.movieIds();
+    columns.movieNames = moviesDB.movieNames(columns.movieIds);
+    columns.movieYears = moviesDB.movieYears(columns.movieIds);
+    columns.movieRanks = moviesDB.movieRanks(columns.movieIds);
+    columns.genreCounts = moviesDB.movieGenreCounts(columns.movieIds);
+    columns.genres = moviesDB.movieGenres(columns.movieIds);
+
+    columns.actorIds = moviesDB.actorIds();
+    columns.actorFirstNames = moviesDB.actorFirstNames(columns.actorIds);
+    columns.actorLastNames = moviesDB.actorLastNames(columns.actorIds);
+    columns.actorIsFemale = moviesDB.actorIsFemale(columns.actorIds);
+
+    columns.directorIds = moviesDB.directorIds();
+    columns.directorFirstNames = moviesDB.directorFirstNames(columns.directorIds);
+    columns.directorLastNames = moviesDB.directorLastNames(columns.directorIds);
+
+    columns.actedIn = moviesDB.actedInPairs();
+    columns.roleCounts = moviesDB.roleCounts(columns.actedIn);
+    columns.roles = moviesDB.roles(columns.actedIn);
+
+    columns.directed = moviesDB.directedPairs();
+
+    columns.actorRankIds = moviesDB.actorRankIds();
+    columns.actorRanks = moviesDB.actorRanks(columns.actorRankIds);
+    columns.directorRankIds = moviesDB.directorRankIds();
+    columns.directorRanks = moviesDB.directorRanks(columns.directorRankIds);
+
+    return columns;
+  }
+
+  static void insert(MoviesDB moviesDB, Columns columns) {
+    for (int i=0, j=0 ; i < columns.movieIds.length ; i++) {
+      Genre[] genres = new Genre[(int) columns.genreCounts[i]];
+      for (int k=0 ; k < genres.length ; k++)
+        genres[k] = IMDB.genresMap.get(columns.genres[j++]);
+      moviesDB.addMovie(columns.movieIds[i], columns.movieNames[i], columns.movieYears[i], columns.movieRanks[i], genres);
+    }
+
+    for (int i=0 ; i < columns.actorIds.length ; i++) {
+      Gender gender = columns.actorIsFemale[i] ? Female.singleton : Male.singleton;
+      moviesDB.addActor(columns.actorIds[i], columns.actorFirstNames[i], columns.actorLastNames[i], gender);
+    }
+    moviesDB.actorsByFirstName("...");
+    moviesDB.actorsByLastName("...");
+
+    for (int i=0 ; i < columns.directorIds.length ; i++)
+      moviesDB.addDirector(columns.directorIds[i], columns.directorFirstNames[i], columns.directorLastNames[i]);
+
+    long[] actedIn = columns.actedIn;
+    for (int i=0, j=0 ; i < columns.roleCounts.length ; i++) {
+      long actorId = actedIn[2 * i];
+      long movieId = actedIn[2 * i + 1];
+      if (columns.roleCounts[i] == 0)
+        moviesDB.addMovieActor(movieId, actorId, null);
+      for (int k=0 ; k < columns.roleCounts[i] ; k++)
+        moviesDB.addMovieActor(movieId, actorId, columns.roles[j++]);
+      if (i == 0)
+        moviesDB.cast(0);
+    }
+
+    long[] directed = columns.directed;
+    for (int i=0 ; i < directed.length ; i += 2) {
+      moviesDB.addMovieDirector(directed[i + 1], directed[i]);
+      if (i == 0)
+        moviesDB.directorsOf(0);
+    }
+
+    for (int i=0 ; i < columns.actorRankIds.length ; i++)
+      moviesDB.setActorRank(columns.actorRankIds[i], columns.actorRanks[i]);
+
+    for (int i=0 ; i < columns.directorRankIds.length ; i++)
+      moviesDB.setDirectorRank(columns.directorRankIds[i], columns.directorRanks[i]);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  // Each segment starts with its table of strings, which is followed by its columns
+  static void writeSegment(int segment, Columns columns, DataOutputStream out) throws IOException {
+    Map<String, Integer> stringsIdxs = new HashMap<String, Integer>();
+    List<String> strings = new ArrayList<String>();
+
+    if (segment == MOVIES) {
+      int[] names = stringIdxs(columns.movieNames, stringsIdxs, strings);
+      int[] genres = stringIdxs(columns.genres, stringsIdxs, strings);
+      writeStrings(out, strings);
+      out.writeInt(columns.movieIds.length);
+      writeInts(out, columns.movieIds);
+      writeInts(out, names);
+      writeInts(out, columns.movieYears);
+      writeDoubles(out, columns.movieRanks);
+      writeInts(out, columns.genreCounts);
+      out.writeInt(genres.length);
+      writeInts(out, genres);
+    }
+    else if (segment == ACTORS) {
+      int[] firstNames = stringIdxs(columns.actorFirstNames, stringsIdxs, strings);
+      int[] lastNames = stringIdxs(columns.actorLastNames, stringsIdxs, strings);
+      writeStrings(out, strings);
+      out.writeInt(columns.actorIds.length);
+      writeInts(out, columns.actorIds);
+      writeInts(out, firstNames);
+      writeInts(out, lastNames);
+      for (int i=0 ; i < columns.actorIsFemale.length ; i++)
+        out.writeBoolean(columns.actorIsFemale[i]);
+    }
+    else if (segment == DIRECTORS) {
+      int[] firstNames = stringIdxs(columns.directorFirstNames, stringsIdxs, strings);
+      int[] lastNames = stringIdxs(columns.directorLastNames, stringsIdxs, strings);
+      writeStrings(out, strings);
+      out.writeInt(columns.directorIds.length);
+      writeInts(out, columns.directorIds);
+      writeInts(out, firstNames);
+      writeInts(out, lastNames);
+    }
+    else if (segment == ACTED_IN) {
+      int[] roles = stringIdxs(columns.roles, stringsIdxs, strings);
+      writeStrings(out, strings);
+      out.writeInt(columns.actedIn.length);
+      writeInts(out, columns.actedIn);
+      writeInts(out, columns.roleCounts);
+      out.writeInt(roles.length);
+      writeInts(out, roles);
+    }
+    else if (segment == DIRECTED) {
+      writeStrings(out, strings);
+      out.writeInt(columns.directed.length);
+      writeInts(out, columns.directed);
+    }
+    else {
+      writeStrings(out, strings);
+      out.writeInt(columns.actorRankIds.length);
+      writeInts(out, columns.actorRankIds);
+      writeDoubles(out, columns.actorRanks);
+      out.writeInt(columns.directorRankIds.length);
+      writeInts(out, columns.directorRankIds);
+      writeDoubles(out, columns.directorRanks);
+    }
+  }
+
+  static void readSegment(int segment, ByteBuffer in, Columns columns) {
+    int[] lengths = readInts(in, in.getInt());
+    char[] chars = readChars(in, in.getInt());
+    String[] strings = new String[lengths.length];
+    for (int i=0, offset=0 ; i < lengths.length ; i++) {
+      strings[i] = new String(chars, offset, lengths[i]);
+      offset += lengths[i];
+    }
+
+    if (segment == MOVIES) {
+      int count = in.getInt();
+      columns.movieIds = readLongs(in, count);
+      columns.movieNames = strings(readInts(in, count), strings);
+      columns.movieYears = readLongs(in, count);
+      columns.movieRanks = readDoubles(in, count);
+      columns.genreCounts = readLongs(in, count);
+      columns.genres = strings(readInts(in, in.getInt()), strings);
+    }
+    else if (segment == ACTORS) {
+      int count = in.getInt();
+      columns.actorIds = readLongs(in, count);
+      columns.actorFirstNames = strings(readInts(in, count), strings);
+      columns.actorLastNames = strings(readInts(in, count), strings);
+      columns.actorIsFemale = new boolean[count];
+      for (int i=0 ; i < count ; i++)
+        columns.actorIsFemale[i] = in.get() != 0;
+    }
+    else if (segment == DIRECTORS) {
+      int count = in.getInt();
+      columns.directorIds = readLongs(in, count);
+      columns.directorFirstNames = strings(readInts(in, count), strings);
+      columns.directorLastNames = strings(readInts(in, count), strings);
+    }
+    else if (segment == ACTED_IN) {
+      columns.actedIn = readLongs(in, in.getInt());
+      columns.roleCounts = readLongs(in, columns.actedIn.length / 2);
+      columns.roles = strings(readInts(in, in.getInt()), strings);
+    }
+    else if (segment == DIRECTED) {
+      columns.directed = readLongs(in, in.getInt());
+    }
+    else {
+      int count = in.getInt();
+      columns.actorRankIds = readLongs(in, count);
+      columns.actorRanks = readDoubles(in, count);
+      count = in.getInt();
+      columns.directorRankIds = readLongs(in, count);
+      columns.directorRanks = readDoubles(in, count);
+    }
+  }
+
+  interface SegmentTask {
+    void run(int segment) throws Exception;
+  }
+
+  static void runInParallel(SegmentTask task) throws Exception {
+    ExecutorService threads = Executors.newFixedThreadPool(SEGMENTS.length);
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (int i=0 ; i < SEGMENTS.length ; i++) {
+        int segment = i;
+        results.add(threads.submit(() -> {
+          task.run(segment);
+          return null;
+        }));
+      }
+      for (Future<Void> result : results)
+        result.get();
+    }
+    finally {
+      threads.shutdown();
+    }
+  }
+
+  static Path segmentFile(String dir, int segment) {
+    return Paths.get(dir, SEGMENTS[segment] + ".bin");
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  static int[] stringIdxs(String[] strs, Map<String, Integer> stringsIdxs, List<String> strings) {
+    int[] idxs = new int[strs.length];
+    for (int i=0 ; i < strs.length ; i++) {
+      Integer idx = stringsIdxs.get(strs[i]);
+      if (idx == null) {
+        idx = strings.size();
+        strings.add(strs[i]);
+        stringsIdxs.put(strs[i], idx);
+      }
+      idxs[i] = idx;
+    }
+    return idxs;
+  }
+
+  static String[] strings(int[] idxs, String[] strings) {
+    String[] strs = new String[idxs.length];
+    for (int i=0 ; i < idxs.length ; i++)
+      strs[i] = strings[idxs[i]];
+    return strs;
+  }
+
+  static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+    out.writeInt(strings.size());
+    int totalLength = 0;
+    for (String str : strings) {
+      out.writeInt(str.length());
+      totalLength += str.length();
+    }
+    out.writeInt(totalLength);
+    for (String str : strings)
+      out.writeChars(str);
+  }
+
+  // All integer columns (ids, years and counts) are stored as 32-bit integers
+  static void writeInts(DataOutputStream out, long[] values) throws IOException {
+    for (int i=0 ; i < values.length ; i++) {
+      long value = values[i];
+      if (value != (int) value)
+        throw new RuntimeException();
+      out.writeInt((int) value);
+    }
+  }
+
+  static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    for (int i=0 ; i < values.length ; i++)
+      out.writeInt(values[i]);
+  }
+
+  static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+    for (int i=0 ; i < values.length ; i++)
+      out.writeDouble(values[i]);
+  }
+
+  static int[] readInts(ByteBuffer in, int count) {
+    int[] values = new int[count];
+    in.asIntBuffer().get(values);
+    in.position(in.position() + 4 * count);
+    return values;
+  }
+
+  static long[] readLongs(ByteBuffer in, int count) {
+    int[] ints = readInts(in, count);
+    long[] values = new long[count];
+    for (int i=0 ; i < count ; i++)
+      values[i] = ints[i];
+    return values;
+  }
+
+  static double[] readDoubles(ByteBuffer in, int count) {
+    double[] values = new double[count];
+    in.asDoubleBuffer().get(values);
+    in.position(in.position() + 8 * count);
+    return values;
+  }
+
+  static char[] readChars(ByteBuffer in, int count) {
+    char[] chars = new char[count];
+    in.asCharBuffer().get(chars);
+    in.position(in.position() + 2 * count);
+    return chars;
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+class CsvReader implements AutoCloseable {
   byte[] content;
   int    index;
+  int    length;
+
+  // Only used in streaming mode
+  FileChannel channel;
+  boolean     exhausted;
+  int         lastNewline; // Position of the last newline in the window, or -1
 
   public CsvReader(byte[] content) {
     this.content = content;
     index = 0;
+    length = content.length;
+  }
+
+  // Streaming mode: the file is read through a window, which is refilled at
+  // line boundaries whenever less than half of it is left, or what's left
+  // doesn't contain a whole line. The window grows whenever it's too small
+  // to hold a whole line, see refill()
+  public CsvReader(FileChannel channel, int windowSize) {
+    this.channel = channel;
+    content = new byte[windowSize];
+    index = 0;
+    length = 0;
+    refill();
+  }
+
+  public void close() throws IOException {
+    if (channel != null)
+      channel.close();
   }
 
   public void skip(char ch) {
@@ -727,6 +1288,8 @@ class CsvReader {
   public void skipLine() {
     while (!eof() && read() != '\n')
       ;
+    if (channel != null && !exhausted && (length - index < content.length / 2 || index > lastNewline))
+      refill();
   }
 
   public List<Object> readRow() {
@@ -736,7 +1299,7 @@ class CsvReader {
       if (eof())
         return row;
       if (nextIs('\n')) {
-        read();
+        skipLine();
         return row;
       }
       if (!nextIs(';')) {
@@ -830,11 +1393,44 @@ class CsvReader {
   }
 
   boolean nextIs(char ch) {
-    return index < content.length && peek() == ch;
+    return index < length && peek() == ch;
   }
 
   boolean eof() {
-    return index >= content.length;
+    return index >= length;
+  }
+
+  // Moves what's left of the window to its start, and fills the rest of it.
+  // If the window then doesn't contain a whole line, its size is doubled until
+  // it does, or the file ends, so the next row never runs past the window.
+  // The position of the last newline tells skipLine() when to refill it again
+  void refill() {
+    int left = length - index;
+    System.arraycopy(content, index, content, 0, left);
+    index = 0;
+    length = left;
+    try {
+      for (int scanned = 0 ; ; ) {
+        ByteBuffer buffer = ByteBuffer.wrap(content, length, content.length - length);
+        while (buffer.hasRemaining())
+          if (channel.read(buffer) < 0) {
+            exhausted = true;
+            break;
+          }
+        length = buffer.position();
+        for (lastNewline = length - 1 ; lastNewline >= scanned ; lastNewline--)
+          if (content[lastNewline] == '\n')
+            return;
+        lastNewline = -1;
+        if (exhausted)
+          return;
+        scanned = length;
+        content = Arrays.copyOf(content, 2 * content.length);
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   void check(boolean cond) {
@@ -1,27 +1,121 @@
 import java.util.List;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.TreeSet;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.IdentityHashMap;
+import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 
 
 class IMDB {
   static int counter;
 
+  // Size of the I/O window used when the CSV files are streamed (--stream)
+  static final int STREAM_WINDOW_SIZE = 1 << 20;
+
+  static boolean streamInput = false;
+
+  // Number of threads used to parse the files that link movies to actors,
+  // directors and genres, or zero to parse them sequentially
+  static int loaderThreads = 0;
+  static ForkJoinPool loaderPool;
+
+  static boolean pipelinedLoad = false;
+
+  // Pool shared by all the files loaded sequentially, if --intern is given
+  static boolean internStrings = false;
+  static StringPool stringPool;
+
+  static boolean printRetainedHeap = false;
+
+  static boolean bulkLoad = false;
+
+  static boolean columnarMovies = false;
+
+  static boolean batchedQueries = false;
+
+  static boolean rankIndex = false;
+
+  static boolean roleGraph = false;
+
+  static boolean cascadingDelete = false;
+
+  static boolean parallelSweep = false;
+
+  static boolean denseCounters = false;
+
+  // Movies with more actors than this are left out of the co-actor
+  // graph (--coactors), or zero if the graph is not in use
+  static int coActorGraphMaxCast = 0;
+
+  // Maximum number of results of moviesWithActorsInCommon() that
+  // are cached (--cache), or zero if the cache is not in use
+  static int cacheCapacity = 0;
+
+  // Executor for the tasks of the operations that run in parallel: the pool
+  // created by --threads, or the common fork-join pool if there isn't one
+  static ExecutorService executor() {
+    return loaderPool != null ? loaderPool : ForkJoinPool.commonPool();
+  }
+
   public static void main(String[] args) {
     try {
-      if (args.length == 3) {
+      args = parseOptions(args);
+
+      if (args != null && (args.length == 3 || args.length == 4)) {
         String option = args[0];
         int repetitions = Integer.parseInt(args[1]);
         String path = args[2];
 
-        if (option.equals("-l")) {
+        if (args.length == 4) {
+          String outFile = args[3];
+
+          if (option.equals("-w")) {
+            runStoringTest(path, outFile, false, repetitions);
+          }
+          else if (option.equals("-uw")) {
+            runStoringTest(path, outFile, true, repetitions);
+          }
+          else {
+            printUsage();
+          }
+        }
+        else if (option.equals("-l")) {
           for (int i=0 ; i < repetitions ; i++) {
             // System.gc();
             runTests(path, 0, false);
@@ -38,6 +132,16 @@ class IMDB {
         else if (option.equals("-uq")) {
           runTests(path, repetitions, true);
         }
+        else if (option.equals("-fp")) {
+          runDoubleParsingBenchmark(path, repetitions);
+        }
+        else if (option.equals("-c")) {
+          runChecks(path, repetitions);
+        }
+        else if (option.equals("-r")) {
+          for (int i=0 ; i < repetitions ; i++)
+            runLoadingTests(path);
+        }
         else {
           printUsage();
         }
@@ -54,30 +158,152 @@ class IMDB {
   }
 
   static void printUsage() {
-    System.out.println("Usage: java -jar imdb-java.jar [-l|-u|-q|-uq] <repetitions> <input directory>");
+    System.out.println("Usage: java -jar imdb-java.jar [-l|-u|-q|-uq|-fp|-c] <repetitions> <input directory> [options]");
     System.out.println("  -l   load dataset only");
     System.out.println("  -u   run updates");
     System.out.println("  -q   run queries");
-    System.out.println("  -uq  run queries on updated dataset\n");
+    System.out.println("  -uq  run queries on updated dataset");
+    System.out.println("  -fp  benchmark the parsing of the rank column of movies.csv");
+    System.out.println("  -c   check the optimized code paths against straightforward implementations");
+    System.out.println();
+    System.out.println("or: java -jar imdb-java.jar [-w|-uw] <repetitions> <input directory> <output file> [options]");
+    System.out.println("  -w   load dataset and write a binary snapshot of it to specified output file");
+    System.out.println("  -uw  load dataset and write a binary snapshot of the updated dataset to specified output file");
+    System.out.println();
+    System.out.println("or: java -jar imdb-java.jar [-r] <repetitions> <input file>");
+    System.out.println("  -r   read a previously saved (with the -w or -uw options) snapshot");
+    System.out.println();
+    System.out.println("Options:");
+    System.out.println("  --stream       read the CSV files through a fixed-size window instead of loading them in memory");
+    System.out.println("  --threads <n>  parse movies_directors.csv, movies_genres.csv and roles.csv using <n> threads");
+    System.out.println("  --pipeline     overlap file I/O with parsing, and load files that don't depend on each other concurrently");
+    System.out.println("  --intern       deduplicate the strings read from the CSV files");
+    System.out.println("  --heap         print the heap retained after loading the dataset (in MBs)");
+    System.out.println("  --bulk         size all tables and adjacency lists in advance, and link the entities in one go");
+    System.out.println("  --columnar     also store the year and rank of all movies in columnar form, for the queries that scan them");
+    System.out.println("  --scalar       with --columnar, don't use the Vector API even if it's available");
+    System.out.println("  --batch        evaluate all the thresholds of the first query with a single call");
+    System.out.println("  --rank-index   index movies by rank, and print the time spent updating the index (with -u)");
+    System.out.println("  --csr          also store the links between movies and actors in compressed sparse row form");
+    System.out.println("  --cascade      delete movies, actors and directors with a single cascading operation, and print how many (with -u)");
+    System.out.println("  --sweep        find the co-actors of all actors with a parallel sweep that doesn't allocate any set (with -q)");
+    System.out.println("  --counters     count the movies in common with each co-actor using an array of counters instead of a map (with -q)");
+    System.out.println("  --coactors <n> precompute the co-actors of all actors, leaving out the movies with more than <n> actors");
+    System.out.println("  --cache <n>    cache the results of the seventh query of -q for up to <n> movies, and print hits, misses, evictions and invalidations\n");
   }
 
-  static void runTests(String path, int numOfQueryRuns, boolean runUpdates) throws Exception {
+  // Strips the options from the command line, and returns the remaining arguments,
+  // or null if any of the options is not recognized
+  static String[] parseOptions(String[] args) {
+    List<String> positionalArgs = new ArrayList<String>();
+    for (int i=0 ; i < args.length ; i++) {
+      String arg = args[i];
+      if (!arg.startsWith("--"))
+        positionalArgs.add(arg);
+      else if (arg.equals("--stream"))
+        streamInput = true;
+      else if (arg.equals("--pipeline"))
+        pipelinedLoad = true;
+      else if (arg.equals("--intern"))
+        internStrings = true;
+      else if (arg.equals("--heap"))
+        printRetainedHeap = true;
+      else if (arg.equals("--bulk"))
+        bulkLoad = true;
+      else if (arg.equals("--columnar"))
+        columnarMovies = true;
+      else if (arg.equals("--scalar"))
+        MovieColumns.vectorKernels = false;
+      else if (arg.equals("--batch"))
+        batchedQueries = true;
+      else if (arg.equals("--rank-index"))
+        rankIndex = true;
+      else if (arg.equals("--csr"))
+        roleGraph = true;
+      else if (arg.equals("--cascade"))
+        cascadingDelete = true;
+      else if (arg.equals("--sweep"))
+        parallelSweep = true;
+      else if (arg.equals("--counters"))
+        denseCounters = true;
+      else if (arg.equals("--cache") && i + 1 < args.length) {
+        cacheCapacity = Integer.parseInt(args[++i]);
+        if (cacheCapacity < 1)
+          return null;
+      }
+      else if (arg.equals("--coactors") && i + 1 < args.length) {
+        coActorGraphMaxCast = Integer.parseInt(args[++i]);
+        if (coActorGraphMaxCast < 1)
+          return null;
+      }
+      else if (arg.equals("--threads") && i + 1 < args.length) {
+        loaderThreads = Integer.parseInt(args[++i]);
+        if (loaderThreads < 1)
+          return null;
+        loaderPool = new ForkJoinPool(loaderThreads);
+      }
+      else
+        return null;
+    }
+    return positionalArgs.toArray(new String[0]);
+  }
+
+  static void runLoadingTests(String inputFile) throws Exception {
     MoviesDB moviesDB = new MoviesDB();
 
+    long msecs1 = System.currentTimeMillis();
+
+    try (FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+      moviesDB.load(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    if (columnarMovies)
+      moviesDB.useColumnarLayout();
+    if (rankIndex)
+      moviesDB.useRankIndex();
+    if (roleGraph)
+      moviesDB.useRoleGraph();
+    if (coActorGraphMaxCast > 0)
+      moviesDB.useCoActorGraph(coActorGraphMaxCast, executor());
+    if (cacheCapacity > 0)
+      moviesDB.useMoviesWithActorsInCommonCache(cacheCapacity);
+
+    long msecs2 = System.currentTimeMillis();
+    printTime(msecs2 - msecs1, false, 6);
+    System.out.println();
+  }
+
+  static void runStoringTest(String inputPath, String outputFile, boolean runUpdates, int repetitions) throws Exception {
+    MoviesDB moviesDB = readCsvFiles(inputPath, false);
+
+    if (runUpdates)
+      runUpdates(moviesDB, false);
+
+    for (int i=0 ; i < repetitions ; i++) {
+      long msecs1 = System.currentTimeMillis();
+
+      String file = outputFile;
+      if (repetitions > 1 && file.endsWith(".bin")) {
+        file = file.substring(0, file.length() - 4) + String.format("-%02d", i) + ".bin";
+      }
+
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+        moviesDB.save(out);
+      }
+
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, false, 6);
+      System.out.println();
+    }
+  }
+
+  static void runTests(String path, int numOfQueryRuns, boolean runUpdates) throws Exception {
     boolean noQueries = numOfQueryRuns == 0;
 
-    // System.gc();
-    readMovies(moviesDB, path, false, noQueries ? 5 : 0);
-    // System.gc();
-    readActors(moviesDB, path, true, noQueries ? 5 : 0);
-    // System.gc();
-    readDirectors(moviesDB, path, true, noQueries ? 5 : 0);
-    // System.gc();
-    readMoviesDirectors(moviesDB, path, true, noQueries ? 5 : 0);
-    // System.gc();
-    readMoviesGenres(moviesDB, path, true, noQueries ? 5 : 0);
-    // System.gc();
-    readRoles(moviesDB, path, true, noQueries ? 5 : 0);
+    MoviesDB moviesDB = readCsvFiles(path, noQueries);
+
+    if (printRetainedHeap && noQueries)
+      printTime(retainedHeap() >> 20, true, 5);
 
     if (!runUpdates)
       for (int i=0 ; i < numOfQueryRuns ; i++) {
@@ -86,19 +312,8 @@ class IMDB {
         runQueries(moviesDB);
       }
 
-    if (runUpdates) {
-      bumpUpRankOfMoviesMadeInOrBefore(moviesDB, new int[] {1970, 1989, 2000},
-                                        new double[] {0.2, 0.05, 0.05}, true, noQueries ? 6 : 0);
-
-      calcActorsAvgsMoviesRanks(moviesDB, true, noQueries ? 4 : 0);
-      calcDirectorsAvgsMoviesRanks(moviesDB, true, noQueries ? 4 : 0);
-
-      bumpUpRankOfMovieAndAllItsActorsAndDirectors(moviesDB, 0.1, true, noQueries ? 5 : 0);
-
-      deleteMoviesWithRankBelow(moviesDB, 4.0, true, noQueries ? 5 : 0);
-      deleteActorsWithNoRoles(moviesDB, true, noQueries ? 4 : 0);
-      deleteDirectorsWithNoMovies(moviesDB, true, noQueries ? 4 : 0);
-    }
+    if (runUpdates)
+      runUpdates(moviesDB, noQueries);
 
     if (runUpdates)
       for (int i=0 ; i < numOfQueryRuns ; i++) {
@@ -110,6 +325,110 @@ class IMDB {
     System.out.println();
   }
 
+  static MoviesDB readCsvFiles(String path, boolean printTimes) throws Exception {
+    MoviesDB moviesDB = null;
+    MoviesDB.Builder builder = null;
+    long bulkLoadTime = 0;
+
+    if (internStrings)
+      stringPool = new StringPool();
+
+    if (bulkLoad) {
+      long msecs1 = System.currentTimeMillis();
+      builder = newBuilder(path);
+      long msecs2 = System.currentTimeMillis();
+      bulkLoadTime = msecs2 - msecs1;
+    }
+    else
+      moviesDB = new MoviesDB();
+
+    MoviesDBLoader loader = bulkLoad ? builder : moviesDB;
+
+    if (pipelinedLoad) {
+      readCsvFilesPipelined(loader, path, printTimes);
+    }
+    else {
+      // System.gc();
+      readMovies(loader, path, false, printTimes ? 5 : 0);
+      // System.gc();
+      readActors(loader, path, true, printTimes ? 5 : 0);
+      // System.gc();
+      readDirectors(loader, path, true, printTimes ? 5 : 0);
+      if (loaderThreads > 0) {
+        readMoviesDirectorsInParallel(loader, path, true, printTimes ? 5 : 0);
+        readMoviesGenresInParallel(loader, path, true, printTimes ? 5 : 0);
+        readRolesInParallel(loader, path, true, printTimes ? 5 : 0);
+      }
+      else {
+        // System.gc();
+        readMoviesDirectors(loader, path, true, printTimes ? 5 : 0);
+        // System.gc();
+        readMoviesGenres(loader, path, true, printTimes ? 5 : 0);
+        // System.gc();
+        readRoles(loader, path, true, printTimes ? 5 : 0);
+      }
+    }
+
+    if (bulkLoad) {
+      long msecs1 = System.currentTimeMillis();
+      moviesDB = builder.build();
+      long msecs2 = System.currentTimeMillis();
+      printTime(bulkLoadTime + msecs2 - msecs1, true, printTimes ? 5 : 0);
+    }
+
+    if (columnarMovies)
+      moviesDB.useColumnarLayout();
+    if (rankIndex)
+      moviesDB.useRankIndex();
+    if (roleGraph)
+      moviesDB.useRoleGraph();
+    if (coActorGraphMaxCast > 0)
+      moviesDB.useCoActorGraph(coActorGraphMaxCast, executor());
+    if (cacheCapacity > 0)
+      moviesDB.useMoviesWithActorsInCommonCache(cacheCapacity);
+
+    // Only the canonical strings have to outlive the loading phase
+    stringPool = null;
+
+    return moviesDB;
+  }
+
+  static void runUpdates(MoviesDB moviesDB, boolean printTimes) {
+    bumpUpRankOfMoviesMadeInOrBefore(moviesDB, new int[] {1970, 1989, 2000},
+                                      new double[] {0.2, 0.05, 0.05}, true, printTimes ? 6 : 0);
+
+    calcActorsAvgsMoviesRanks(moviesDB, true, printTimes ? 4 : 0);
+    calcDirectorsAvgsMoviesRanks(moviesDB, true, printTimes ? 4 : 0);
+
+    bumpUpRankOfMovieAndAllItsActorsAndDirectors(moviesDB, 0.1, true, printTimes ? 5 : 0);
+
+    if (cascadingDelete) {
+      long indexTime = rankIndexTime(moviesDB);
+      MoviesDB.DeleteReport report = moviesDB.deleteMoviesWithRankBelowCascading(4.0, executor());
+      printTime(report.markTime - (rankIndexTime(moviesDB) - indexTime) / 1000000, true, printTimes ? 5 : 0);
+      printTime(report.propagateTime, true, printTimes ? 4 : 0);
+      printTime(report.compactTime, true, printTimes ? 4 : 0);
+      // Followed by the number of entities of each type that were deleted
+      printTime(report.numOfMovies, true, printTimes ? 6 : 0);
+      printTime(report.numOfActors, true, printTimes ? 7 : 0);
+      printTime(report.numOfDirectors, true, printTimes ? 6 : 0);
+    }
+    else {
+      deleteMoviesWithRankBelow(moviesDB, 4.0, true, printTimes ? 5 : 0);
+      deleteActorsWithNoRoles(moviesDB, true, printTimes ? 4 : 0);
+      deleteDirectorsWithNoMovies(moviesDB, true, printTimes ? 4 : 0);
+    }
+
+    // Time spent keeping the rank index up to date, which is excluded from the above
+    if (moviesDB.rankIndex != null)
+      printTime(rankIndexTime(moviesDB) / 1000000, true, printTimes ? 4 : 0);
+  }
+
+  // Time in nanoseconds spent so far updating the rank index, if there's one
+  static long rankIndexTime(MoviesDB moviesDB) {
+    return moviesDB.rankIndex != null ? moviesDB.rankIndex.updateTime : 0;
+  }
+
   static void runQueries(MoviesDB moviesDB) throws Exception {
     numOfMoviesWithRankAbove(moviesDB, false, 4);
     numOfActorsWhoPlayedInAMovieWithRankAbove(moviesDB, true, 5);
@@ -125,16 +444,32 @@ class IMDB {
     lastNamesOfActorsWithSameFirstNameAs(moviesDB, true, 5);
     isAlsoActor(moviesDB, true, 4);
     fullName(moviesDB, true, 4);
+
+    // Followed by the hits, misses, evictions and invalidations of the
+    // cache, if there's one, since it was created
+    MovieResultsCache cache = moviesDB.moviesWithActorsInCommonCache;
+    if (cache != null) {
+      printTime(cache.hits, true, 7);
+      printTime(cache.misses, true, 7);
+      printTime(cache.evictions, true, 6);
+      printTime(cache.invalidations, true, 6);
+    }
   }
 
   //////////////////////////////////////////////////////////////////////////////
 
-  static void readMovies(MoviesDB moviesDB, String path, boolean printSep, int width) throws Exception {
-    byte[] content = Files.readAllBytes(Paths.get(path + "/movies.csv"));
+  static void readMovies(MoviesDBLoader moviesDB, String path, boolean printSep, int width) throws Exception {
+    try (CsvReader reader = openCsvFile(path + "/movies.csv")) {
+      long msecs1 = System.currentTimeMillis();
 
-    long msecs1 = System.currentTimeMillis();
+      loadMovies(moviesDB, reader);
 
-    CsvReader reader = new CsvReader(content);
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, printSep, width);
+    }
+  }
+
+  static void loadMovies(MoviesDBLoader moviesDB, CsvReader reader) {
     reader.skipLine();
     while (!reader.eof()) {
       int id = (int) reader.readLong();
@@ -148,17 +483,20 @@ class IMDB {
 
       moviesDB.addMovie(id, name, year, rank);
     }
-
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
   }
 
-  static void readActors(MoviesDB moviesDB, String path, boolean printSep, int width) throws Exception {
-    byte[] content = Files.readAllBytes(Paths.get(path + "/actors.csv"));
+  static void readActors(MoviesDBLoader moviesDB, String path, boolean printSep, int width) throws Exception {
+    try (CsvReader reader = openCsvFile(path + "/actors.csv")) {
+      long msecs1 = System.currentTimeMillis();
 
-    long msecs1 = System.currentTimeMillis();
+      loadActors(moviesDB, reader);
 
-    CsvReader reader = new CsvReader(content);
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, printSep, width);
+    }
+  }
+
+  static void loadActors(MoviesDBLoader moviesDB, CsvReader reader) {
     reader.skipLine();
     while (!reader.eof()) {
       int id = (int) reader.readLong();
@@ -167,30 +505,25 @@ class IMDB {
       reader.skip(';');
       String lastName = reader.readString();
       reader.skip(';');
-      String genderStr = reader.readString();
+      Actor.Gender gender = genders[reader.readEnum(gendersDictionary)];
       reader.skipLine();
 
-      Actor.Gender gender;
-      if (genderStr.equals("M"))
-        gender = Actor.Gender.male;
-      else if (genderStr.equals("F"))
-        gender = Actor.Gender.female;
-      else
-        throw new RuntimeException();
-
       moviesDB.addActor(id, firstName, lastName, gender);
     }
-
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
   }
 
-  static void readDirectors(MoviesDB moviesDB, String path, boolean printSep, int width) throws Exception {
-    byte[] content = Files.readAllBytes(Paths.get(path + "/directors.csv"));
+  static void readDirectors(MoviesDBLoader moviesDB, String path, boolean printSep, int width) throws Exception {
+    try (CsvReader reader = openCsvFile(path + "/directors.csv")) {
+      long msecs1 = System.currentTimeMillis();
 
-    long msecs1 = System.currentTimeMillis();
+      loadDirectors(moviesDB, reader);
 
-    CsvReader reader = new CsvReader(content);
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, printSep, width);
+    }
+  }
+
+  static void loadDirectors(MoviesDBLoader moviesDB, CsvReader reader) {
     reader.skipLine();
     while (!reader.eof()) {
       int id = (int) reader.readLong();
@@ -202,17 +535,20 @@ class IMDB {
 
       moviesDB.addDirector(id, firstName, lastName);
     }
-
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
   }
 
-  static void readMoviesDirectors(MoviesDB moviesDB, String path, boolean printSep, int width) throws Exception {
-    byte[] content = Files.readAllBytes(Paths.get(path + "/movies_directors.csv"));
+  static void readMoviesDirectors(MoviesDBLoader moviesDB, String path, boolean printSep, int width) throws Exception {
+    try (CsvReader reader = openCsvFile(path + "/movies_directors.csv")) {
+      long msecs1 = System.currentTimeMillis();
 
-    long msecs1 = System.currentTimeMillis();
+      loadMoviesDirectors(moviesDB, reader);
 
-    CsvReader reader = new CsvReader(content);
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, printSep, width);
+    }
+  }
+
+  static void loadMoviesDirectors(MoviesDBLoader moviesDB, CsvReader reader) {
     reader.skipLine();
     while (!reader.eof()) {
       int directorId = (int) reader.readLong();
@@ -222,37 +558,43 @@ class IMDB {
 
       moviesDB.addMovieDirector(directorId, movieId);
     }
-
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
   }
 
-  static void readMoviesGenres(MoviesDB moviesDB, String path, boolean printSep, int width) throws Exception {
-    byte[] content = Files.readAllBytes(Paths.get(path + "/movies_genres.csv"));
+  static void readMoviesGenres(MoviesDBLoader moviesDB, String path, boolean printSep, int width) throws Exception {
+    try (CsvReader reader = openCsvFile(path + "/movies_genres.csv")) {
+      long msecs1 = System.currentTimeMillis();
 
-    long msecs1 = System.currentTimeMillis();
+      loadMoviesGenres(moviesDB, reader);
 
-    CsvReader reader = new CsvReader(content);
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, printSep, width);
+    }
+  }
+
+  static void loadMoviesGenres(MoviesDBLoader moviesDB, CsvReader reader) {
     reader.skipLine();
     while (!reader.eof()) {
       int movieId = (int) reader.readLong();
       reader.skip(';');
-      String genre = reader.readString();
+      Movie.Genre genre = genres[reader.readEnum(genresDictionary)];
       reader.skipLine();
 
-      moviesDB.addMovieGenre(movieId, genresMap.get(genre));
+      moviesDB.addMovieGenre(movieId, genre);
     }
-
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
   }
 
-  static void readRoles(MoviesDB moviesDB, String path, boolean printSep, int width) throws Exception {
-    byte[] content = Files.readAllBytes(Paths.get(path + "/roles.csv"));
+  static void readRoles(MoviesDBLoader moviesDB, String path, boolean printSep, int width) throws Exception {
+    try (CsvReader reader = openCsvFile(path + "/roles.csv")) {
+      long msecs1 = System.currentTimeMillis();
 
-    long msecs1 = System.currentTimeMillis();
+      loadRoles(moviesDB, reader);
 
-    CsvReader reader = new CsvReader(content);
+      long msecs2 = System.currentTimeMillis();
+      printTime(msecs2 - msecs1, printSep, width);
+    }
+  }
+
+  static void loadRoles(MoviesDBLoader moviesDB, CsvReader reader) {
     reader.skipLine();
     while (!reader.eof()) {
       int actorId = (int) reader.readLong();
@@ -264,142 +606,941 @@ class IMDB {
 
       moviesDB.addRole(actorId, movieId, role);
     }
-
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
   }
 
-  //////////////////////////////////////////////////////////////////////////////
   //////////////////////////////////////////////////////////////////////////////
 
-  static void bumpUpRankOfMoviesMadeInOrBefore(MoviesDB moviesDB, int[] years, double[] factors, boolean printSep, int width) {
+  static void readMoviesDirectorsInParallel(MoviesDBLoader moviesDB, String path, boolean printSep, int width) throws Exception {
+    byte[] content = Files.readAllBytes(Paths.get(path + "/movies_directors.csv"));
+
     long msecs1 = System.currentTimeMillis();
-    for (int i=0 ; i < years.length ; i++)
-      moviesDB.bumpUpRankOfMoviesMadeInOrBefore(years[i], factors[i]);
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
-  }
 
-  //////////////////////////////////////////////////////////////////////////////
-  //////////////////////////////////////////////////////////////////////////////
+    loadMoviesDirectorsInParallel(moviesDB, content);
 
-  static void calcActorsAvgsMoviesRanks(MoviesDB moviesDB, boolean printSep, int width) {
-    long msecs1 = System.currentTimeMillis();
-    moviesDB.calcActorsAvgsMoviesRanks();
     long msecs2 = System.currentTimeMillis();
     printTime(msecs2 - msecs1, printSep, width);
   }
 
-  static void calcDirectorsAvgsMoviesRanks(MoviesDB moviesDB, boolean printSep, int width) {
-    long msecs1 = System.currentTimeMillis();
-    moviesDB.calcDirectorsAvgsMoviesRanks();
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
+  static void loadMoviesDirectorsInParallel(MoviesDBLoader moviesDB, byte[] content) throws Exception {
+    LinkChunk[] chunks = parseInParallel(content, (reader, chunk) -> {
+      int directorId = (int) reader.readLong();
+      reader.skip(';');
+      int movieId = (int) reader.readLong();
+      chunk.add(directorId, movieId, null);
+    });
+
+    for (LinkChunk chunk : chunks)
+      for (int i=0 ; i < chunk.size ; i++)
+        moviesDB.addMovieDirector(chunk.ids1[i], chunk.ids2[i]);
   }
 
-  static void bumpUpRankOfMovieAndAllItsActorsAndDirectors(MoviesDB moviesDB, double factor, boolean printSep, int width) {
-    long msecs1 = System.currentTimeMillis();
+  static void readMoviesGenresInParallel(MoviesDBLoader moviesDB, String path, boolean printSep, int width) throws Exception {
+    byte[] content = Files.readAllBytes(Paths.get(path + "/movies_genres.csv"));
 
-    int maxId = 0;
-    for (Movie m : moviesDB.movies.values())
-      if (m.id > maxId)
-        maxId = m.id;
-    int numOfIds = moviesDB.movies.size() / 4;
-    int[] randomIds = randomInts(maxId, numOfIds, 735025);
+    long msecs1 = System.currentTimeMillis();
 
-    for (int id : randomIds) {
-      Movie movie = moviesDB.movies.get(id);
-      if (movie != null)
-        moviesDB.bumpUpRankOfMovieAndAllItsActorsAndDirectors(movie, factor);
-    }
+    loadMoviesGenresInParallel(moviesDB, content);
 
     long msecs2 = System.currentTimeMillis();
     printTime(msecs2 - msecs1, printSep, width);
   }
 
-  //////////////////////////////////////////////////////////////////////////////
-  //////////////////////////////////////////////////////////////////////////////
+  static void loadMoviesGenresInParallel(MoviesDBLoader moviesDB, byte[] content) throws Exception {
+    LinkChunk[] chunks = parseInParallel(content, (reader, chunk) -> {
+      int movieId = (int) reader.readLong();
+      reader.skip(';');
+      int genre = reader.readEnum(genresDictionary);
+      chunk.add(movieId, genre, null);
+    });
 
-  static void deleteMoviesWithRankBelow(MoviesDB moviesDB, double minRank, boolean printSep, int width) {
-    long msecs1 = System.currentTimeMillis();
-    moviesDB.deleteMoviesWithRankBelow(minRank);
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
+    for (LinkChunk chunk : chunks)
+      for (int i=0 ; i < chunk.size ; i++)
+        moviesDB.addMovieGenre(chunk.ids1[i], genres[chunk.ids2[i]]);
   }
 
-  static void deleteActorsWithNoRoles(MoviesDB moviesDB, boolean printSep, int width) {
-    long msecs1 = System.currentTimeMillis();
-    moviesDB.deleteActorsWithNoRoles();
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
-  }
+  static void readRolesInParallel(MoviesDBLoader moviesDB, String path, boolean printSep, int width) throws Exception {
+    byte[] content = Files.readAllBytes(Paths.get(path + "/roles.csv"));
 
-  static void deleteDirectorsWithNoMovies(MoviesDB moviesDB, boolean printSep, int width) {
     long msecs1 = System.currentTimeMillis();
-    moviesDB.deleteDirectorsWithNoMovies();
+
+    loadRolesInParallel(moviesDB, content);
+
     long msecs2 = System.currentTimeMillis();
     printTime(msecs2 - msecs1, printSep, width);
   }
 
-  //////////////////////////////////////////////////////////////////////////////
-  //////////////////////////////////////////////////////////////////////////////
-
-  static void moviesWithActorsInCommon(MoviesDB moviesDB, boolean printSep, int width) {
-    long msecs1 = System.currentTimeMillis();
+  static void loadRolesInParallel(MoviesDBLoader moviesDB, byte[] content) throws Exception {
+    LinkChunk[] chunks = parseInParallel(content, (reader, chunk) -> {
+      int actorId = (int) reader.readLong();
+      reader.skip(';');
+      int movieId = (int) reader.readLong();
+      reader.skip(';');
+      String role = reader.readString();
+      chunk.add(actorId, movieId, role);
+    });
 
-    int maxMovieId = maxMovieId(moviesDB);
-    int numOfIds = moviesDB.movies.size() / 6;
-    int[] randomIds = randomInts(maxMovieId, numOfIds, 64798);
+    for (LinkChunk chunk : chunks)
+      for (int i=0 ; i < chunk.size ; i++)
+        moviesDB.addRole(chunk.ids1[i], chunk.ids2[i], chunk.strs[i]);
+  }
 
-    long count = 0;
-    int misses = 0;
+  interface LinkParser {
+    void parse(CsvReader reader, LinkChunk chunk);
+  }
 
-    for (int id : randomIds) {
-      Movie movie = moviesDB.movies.get(id);
-      if (movie != null) {
-        Set<Movie> movies = movie.moviesWithActorsInCommon();
-        count += movies.size();
-      }
-      else
-        misses++;
+  // Splits the content of a file (minus the header) into chunks that start and
+  // end at line boundaries, and parses them in parallel on the loader pool.
+  // The chunks are returned in file order, so that merging them one after
+  // the other produces the same result as a sequential load
+  static LinkChunk[] parseInParallel(byte[] content, LinkParser parser) throws Exception {
+    int numOfChunks = 4 * loaderThreads;
+    int[] bounds = new int[numOfChunks + 1];
+    bounds[0] = lineEnd(content, 0);
+    // Each chunk but the first one starts just after the newline at or after the
+    // one that precedes its nominal start, but never before the previous chunk
+    for (int i=1 ; i < numOfChunks ; i++)
+      bounds[i] = lineEnd(content, Math.max(bounds[i-1], (int) ((long) content.length * i / numOfChunks) - 1));
+    bounds[numOfChunks] = content.length;
+
+    List<Callable<LinkChunk>> tasks = new ArrayList<Callable<LinkChunk>>();
+    for (int i=0 ; i < numOfChunks ; i++) {
+      int start = bounds[i];
+      int end = bounds[i+1];
+      tasks.add(() -> {
+        // Rough estimate of the number of lines in the chunk
+        LinkChunk chunk = new LinkChunk((end - start) / 16 + 16);
+        CsvReader reader = newCsvReader(content, start, end);
+        while (!reader.eof()) {
+          parser.parse(reader, chunk);
+          reader.skipLine();
+        }
+        return chunk;
+      });
     }
 
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
+    List<Future<LinkChunk>> results = loaderPool.invokeAll(tasks);
+    LinkChunk[] chunks = new LinkChunk[numOfChunks];
+    for (int i=0 ; i < numOfChunks ; i++)
+      chunks[i] = results.get(i).get();
+    return chunks;
   }
 
-  static void moviesAgeHistogram(MoviesDB moviesDB, boolean printSep, int width) {
-    long msecs1 = System.currentTimeMillis();
-
-    int[] histogram;
-    for (int i=0 ; i < 50 ; i++)
-      histogram = moviesDB.moviesAgeHistogram(1900, 5.0 + i * 0.1);
-
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
+  // Returns the offset just past the first newline at or after the given one
+  static int lineEnd(byte[] content, int offset) {
+    while (offset < content.length && content[offset++] != '\n')
+      ;
+    return offset;
   }
 
-  static void isAlsoActor(MoviesDB moviesDB, boolean printSep, int width) {
-    long msecs1 = System.currentTimeMillis();
+  //////////////////////////////////////////////////////////////////////////////
 
-    long count = 0;
-    long otherCount = 0;
-    for (Director d : moviesDB.directors.values()) {
-      if (moviesDB.isAlsoActor(d))
-        count++;
-      else
-        otherCount++;
+  // Loads the six files as a pipeline: a dedicated thread reads them from disk
+  // one after the other, while movies, actors and directors are parsed as soon
+  // as their file is available, concurrently with each other, and the files
+  // that link them are parsed once both their file and the entities they
+  // refer to are loaded. The entity and link loaders write to disjoint parts
+  // of MoviesDB, so the stages that run at the same time don't interfere.
+  // Each stage is timed from the moment it starts parsing, and the times are
+  // printed in the usual order once all stages are done, followed by the
+  // total (wall clock) time
+  static void readCsvFilesPipelined(MoviesDBLoader moviesDB, String path, boolean printTimes) throws Exception {
+    ExecutorService ioThread = Executors.newSingleThreadExecutor();
+    ExecutorService parsingThreads = Executors.newFixedThreadPool(3);
+
+    try {
+      long msecs1 = System.currentTimeMillis();
+
+      CompletableFuture<byte[]> moviesFile = readFileAsync(path + "/movies.csv", ioThread);
+      CompletableFuture<byte[]> actorsFile = readFileAsync(path + "/actors.csv", ioThread);
+      CompletableFuture<byte[]> directorsFile = readFileAsync(path + "/directors.csv", ioThread);
+      CompletableFuture<byte[]> moviesDirectorsFile = readFileAsync(path + "/movies_directors.csv", ioThread);
+      CompletableFuture<byte[]> moviesGenresFile = readFileAsync(path + "/movies_genres.csv", ioThread);
+      CompletableFuture<byte[]> rolesFile = readFileAsync(path + "/roles.csv", ioThread);
+
+      long[] times = new long[6];
+
+      CompletableFuture<Void> movies = moviesFile.thenAcceptAsync(
+        content -> times[0] = runStage(() -> loadMovies(moviesDB, newCsvReader(content, 0, content.length))), parsingThreads
+      );
+      CompletableFuture<Void> actors = actorsFile.thenAcceptAsync(
+        content -> times[1] = runStage(() -> loadActors(moviesDB, newCsvReader(content, 0, content.length))), parsingThreads
+      );
+      CompletableFuture<Void> directors = directorsFile.thenAcceptAsync(
+        content -> times[2] = runStage(() -> loadDirectors(moviesDB, newCsvReader(content, 0, content.length))), parsingThreads
+      );
+
+      CompletableFuture<Void> moviesDirectors = CompletableFuture.allOf(movies, directors).thenAcceptBothAsync(
+        moviesDirectorsFile, (v, content) -> times[3] = runStage(() -> {
+          if (loaderThreads > 0)
+            loadMoviesDirectorsInParallel(moviesDB, content);
+          else
+            loadMoviesDirectors(moviesDB, newCsvReader(content, 0, content.length));
+        }), parsingThreads
+      );
+      CompletableFuture<Void> moviesGenres = movies.thenAcceptBothAsync(
+        moviesGenresFile, (v, content) -> times[4] = runStage(() -> {
+          if (loaderThreads > 0)
+            loadMoviesGenresInParallel(moviesDB, content);
+          else
+            loadMoviesGenres(moviesDB, newCsvReader(content, 0, content.length));
+        }), parsingThreads
+      );
+      CompletableFuture<Void> roles = CompletableFuture.allOf(movies, actors).thenAcceptBothAsync(
+        rolesFile, (v, content) -> times[5] = runStage(() -> {
+          if (loaderThreads > 0)
+            loadRolesInParallel(moviesDB, content);
+          else
+            loadRoles(moviesDB, newCsvReader(content, 0, content.length));
+        }), parsingThreads
+      );
+
+      CompletableFuture.allOf(moviesDirectors, moviesGenres, roles).join();
+
+      long msecs2 = System.currentTimeMillis();
+
+      if (printTimes) {
+        for (int i=0 ; i < times.length ; i++)
+          printTime(times[i], i > 0, 5);
+        printTime(msecs2 - msecs1, true, 6);
+      }
+    }
+    finally {
+      ioThread.shutdown();
+      parsingThreads.shutdown();
     }
+  }
 
-    long msecs2 = System.currentTimeMillis();
-    printTime(msecs2 - msecs1, printSep, width);
+  static CompletableFuture<byte[]> readFileAsync(String file, ExecutorService ioThread) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return Files.readAllBytes(Paths.get(file));
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, ioThread);
   }
 
-  static void fullName(MoviesDB moviesDB, boolean printSep, int width) {
-    long msecs1 = System.currentTimeMillis();
+  interface LoadStage {
+    void run() throws Exception;
+  }
+
+  // Runs a load stage and returns its duration in milliseconds
+  static long runStage(LoadStage stage) {
+    try {
+      long msecs1 = System.currentTimeMillis();
+      stage.run();
+      long msecs2 = System.currentTimeMillis();
+      return msecs2 - msecs1;
+    }
+    catch (Exception e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  static CsvReader openCsvFile(String file) throws Exception {
+    CsvReader reader;
+    if (streamInput)
+      reader = new CsvReader(FileChannel.open(Paths.get(file), StandardOpenOption.READ), STREAM_WINDOW_SIZE);
+    else
+      reader = new CsvReader(Files.readAllBytes(Paths.get(file)));
+    reader.pool = stringPool;
+    return reader;
+  }
+
+  // Pre-pass for the bulk loader: the id tables are indexed by id, so they're
+  // sized from the largest id in each file, while the buffers of the links
+  // only depend on the number of rows
+  static MoviesDB.Builder newBuilder(String path) throws Exception {
+    return new MoviesDB.Builder(
+      maxId(path + "/movies.csv") + 1,
+      maxId(path + "/actors.csv") + 1,
+      maxId(path + "/directors.csv") + 1,
+      countRows(path + "/movies_directors.csv"),
+      countRows(path + "/movies_genres.csv"),
+      countRows(path + "/roles.csv")
+    );
+  }
+
+  // Returns the number of lines in a file, minus the header
+  static int countRows(String file) throws Exception {
+    try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate(STREAM_WINDOW_SIZE);
+      byte[] bytes = buffer.array();
+      int count = 0;
+      byte last = '\n';
+      for ( ; ; ) {
+        int size = channel.read(buffer);
+        if (size == -1)
+          break;
+        for (int i=0 ; i < size ; i++)
+          if (bytes[i] == '\n')
+            count++;
+        if (size > 0)
+          last = bytes[size - 1];
+        buffer.clear();
+      }
+      if (last != '\n')
+        count++;
+      return Math.max(count - 1, 0);
+    }
+  }
+
+  // Returns the largest of the ids at the start of the lines of a file, or -1
+  // if there's none. The header is skipped, and so are the ids that are not
+  // plain sequences of digits, which the parser will reject anyway
+  static int maxId(String file) throws Exception {
+    try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate(STREAM_WINDOW_SIZE);
+      byte[] bytes = buffer.array();
+      int maxId = -1;
+      int id = 0;
+      int numOfDigits = 0;
+      boolean inHeader = true;
+      boolean inId = false;
+      for ( ; ; ) {
+        int size = channel.read(buffer);
+        if (size == -1)
+          break;
+        for (int i=0 ; i < size ; i++) {
+          byte b = bytes[i];
+          if (b == '\n') {
+            if (numOfDigits > 0)
+              maxId = Math.max(maxId, id);
+            inHeader = false;
+            inId = true;
+            id = 0;
+            numOfDigits = 0;
+          }
+          else if (inId) {
+            if (b >= '0' && b <= '9' && numOfDigits < 9) {
+              id = 10 * id + (b - '0');
+              numOfDigits++;
+            }
+            else {
+              if (b != ';')
+                numOfDigits = 0;
+              inId = false;
+            }
+          }
+        }
+        buffer.clear();
+      }
+      if (!inHeader && numOfDigits > 0)
+        maxId = Math.max(maxId, id);
+      return maxId;
+    }
+  }
+
+  // Readers used by loaders that run concurrently with others get a string pool of their own
+  static CsvReader newCsvReader(byte[] content, int start, int end) {
+    CsvReader reader = new CsvReader(content, start, end);
+    if (internStrings)
+      reader.pool = new StringPool();
+    return reader;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  // Compares the floating point parser used by CsvReader with the original one,
+  // which is kept as CsvReader.readDoubleSimple(). Each line of the output
+  // contains the time it takes each parser to go ten times through the rank
+  // column of movies.csv, followed by the number of values each parser
+  // got wrong, compared with Double.parseDouble()
+  static void runDoubleParsingBenchmark(String path, int repetitions) throws Exception {
+    byte[] content = Files.readAllBytes(Paths.get(path + "/movies.csv"));
+
+    int[] offsets = new int[1024];
+    int count = 0;
+
+    CsvReader reader = new CsvReader(content);
+    reader.skipLine();
+    while (!reader.eof()) {
+      reader.readLong();
+      reader.skip(';');
+      reader.readString();
+      reader.skip(';');
+      reader.readLong();
+      reader.skip(';');
+      if (count == offsets.length)
+        offsets = Arrays.copyOf(offsets, 2 * count);
+      offsets[count++] = reader.index;
+      reader.skipLine();
+    }
+
+    int simpleErrors = 0;
+    int errors = 0;
+    for (int i=0 ; i < count ; i++) {
+      reader.index = offsets[i];
+      double simpleValue = reader.readDoubleSimple();
+      reader.index = offsets[i];
+      double value = reader.readDouble();
+      String text = new String(content, offsets[i], reader.index - offsets[i], StandardCharsets.ISO_8859_1);
+      double exactValue = Double.parseDouble(text);
+      if (simpleValue != exactValue)
+        simpleErrors++;
+      if (value != exactValue)
+        errors++;
+    }
+
+    for (int i=0 ; i < repetitions ; i++) {
+      double simpleSum = 0;
+      double sum = 0;
+
+      long msecs1 = System.currentTimeMillis();
+      for (int j=0 ; j < 10 ; j++)
+        for (int k=0 ; k < count ; k++) {
+          reader.index = offsets[k];
+          simpleSum += reader.readDoubleSimple();
+        }
+      long msecs2 = System.currentTimeMillis();
+      for (int j=0 ; j < 10 ; j++)
+        for (int k=0 ; k < count ; k++) {
+          reader.index = offsets[k];
+          sum += reader.readDouble();
+        }
+      long msecs3 = System.currentTimeMillis();
+
+      printTime(msecs2 - msecs1, false, 5);
+      printTime(msecs3 - msecs2, true, 5);
+      printTime(simpleErrors, true, 7);
+      printTime(errors, true, 7);
+      System.out.println();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  // Compares the results of the optimized code paths with those of a simpler
+  // implementation, or of the standard library. Each check prints the number
+  // of cases it went through and the number of mismatches it found. Checks
+  // that use random data are repeated with a different seed each time. The
+  // checks that query the dataset are run again after the updates of -u, to
+  // cover the structures that are kept up to date incrementally. The cache of
+  // the results of idsOfMoviesWithActorsInCommon() is large enough to hold
+  // all of them, so that the results cached by the first round of checks are
+  // only dropped if the updates invalidate them
+  static void runChecks(String path, int repetitions) throws Exception {
+    MoviesDB moviesDB = readCheckedDB(path);
+    for (int i=0 ; i < repetitions ; i++) {
+      Random random = new Random(i);
+      checkDoubleParser(path, random);
+      checkMovieResultsCache(random);
+      checkCoActorCounts(moviesDB, random, "co-actor counts");
+      checkRankIndex(moviesDB, random, "rank index");
+      checkMoviesWithActorsInCommon(moviesDB, random, "movies with actors in common");
+    }
+
+    fillCache(moviesDB);
+    runUpdates(moviesDB, false);
+    for (int i=0 ; i < repetitions ; i++) {
+      Random random = new Random(i);
+      checkCoActorCounts(moviesDB, random, "co-actor counts, updated");
+      checkRankIndex(moviesDB, random, "rank index, updated");
+      checkMoviesWithActorsInCommon(moviesDB, random, "movies with actors in common, updated");
+    }
+
+    // Roles are added while the role graph is in use, so that they go into the
+    // rows of the graph that have room left, or into the ones that are moved to
+    // the end of its arrays, which are then checked without a rebuild
+    if (moviesDB.roleGraph == null)
+      moviesDB.useRoleGraph();
+    moviesDB.roleGraph();
+    addRandomRoles(moviesDB, new Random(repetitions), 1000);
+    boolean rebuilt = moviesDB.roleGraph.needsRebuild();
+    printCheck("role graph, roles added", 1, rebuilt ? 1 : 0);
+    for (int i=0 ; i < repetitions ; i++) {
+      Random random = new Random(i);
+      checkCoActorCounts(moviesDB, random, "co-actor counts, roles added");
+      checkMoviesWithActorsInCommon(moviesDB, random, "movies with actors in common, roles added");
+    }
+    printCacheCounters("cache, updated", moviesDB.moviesWithActorsInCommonCache);
+
+    // The same checks are run on a fresh copy of the dataset after the ranks of
+    // all movies are bumped up, which goes through the update of the rank index,
+    // and again after each of two cascading deletes, the first of which finds
+    // the movies through the rank index, while the second one goes through all
+    // of them, and removes them from the index one by one. The threshold of the
+    // first one falls inside a bucket of the rank index, right above the rank
+    // 5.0 of the movies made after 1989, which were not bumped up
+    moviesDB = readCheckedDB(path);
+    moviesDB.bumpUpRankOfMoviesMadeInOrBefore(1989, 0.3);
+    for (int i=0 ; i < repetitions ; i++)
+      checkRankIndex(moviesDB, new Random(i), "rank index, bumped");
+
+    checkCascadingDelete(moviesDB, db -> db.deleteMoviesWithRankBelowCascading(5.001, executor()), "cascading delete", repetitions);
+    checkCascadingDelete(moviesDB, db -> db.deleteMoviesCascading(m -> m.year < 1940 || m.year % 7 == 0, executor()), "cascading delete by year", repetitions);
+    printCacheCounters("cache, bumped and deleted", moviesDB.moviesWithActorsInCommonCache);
+  }
+
+  // Checks MovieResultsCache, and its counters, against a LinkedHashMap in
+  // access order, with random sequences of lookups, insertions and
+  // invalidations on caches small enough for most insertions to evict an entry
+  static void checkMovieResultsCache(Random random) {
+    int numOfCases = 100;
+    int numOfMismatches = 0;
+    for (int i=0 ; i < numOfCases ; i++) {
+      int capacity = 1 + random.nextInt(64);
+      MovieResultsCache cache = new MovieResultsCache(capacity);
+      LinkedHashMap<Integer, int[]> expected = new LinkedHashMap<Integer, int[]>(16, 0.75f, true);
+      long hits = 0;
+      long evictions = 0;
+      long invalidations = 0;
+      boolean matches = true;
+      for (int j=0 ; j < 10000 ; j++) {
+        int movieId = random.nextInt(200);
+        int operation = random.nextInt(4);
+        if (operation == 0) {
+          int[] result = new int[] {movieId, j};
+          cache.put(movieId, result);
+          expected.put(movieId, result);
+          if (expected.size() > capacity) {
+            expected.remove(expected.keySet().iterator().next());
+            evictions++;
+          }
+        }
+        else if (operation == 1) {
+          cache.invalidate(movieId);
+          if (expected.remove(movieId) != null)
+            invalidations++;
+        }
+        else {
+          int[] result = expected.get(movieId);
+          matches &= cache.get(movieId) == result;
+          if (result != null)
+            hits++;
+        }
+      }
+      matches &= cache.size() == expected.size() && cache.hits == hits;
+      matches &= cache.evictions == evictions && cache.invalidations == invalidations;
+      if (!matches)
+        numOfMismatches++;
+    }
+    printCheck("movie results cache", numOfCases, numOfMismatches);
+  }
+
+  // Caches the results of all movies, so that the checks that follow an update
+  // find out if any of those that had to be invalidated were not
+  static void fillCache(MoviesDB moviesDB) {
+    for (int id=0 ; id < moviesDB.movies.capacity() ; id++) {
+      Movie movie = moviesDB.movies.get(id);
+      if (movie != null)
+        moviesDB.idsOfMoviesWithActorsInCommon(movie);
+    }
+  }
+
+  static void printCacheCounters(String name, MovieResultsCache cache) {
+    System.out.println(name + ": " + cache.hits + " hits, " + cache.misses + " misses, " +
+                       cache.evictions + " evictions, " + cache.invalidations + " invalidations");
+  }
+
+  // Runs a cascading delete, checks its report against the number of entities
+  // of each type left in the database, and then checks the queries
+  static void checkCascadingDelete(MoviesDB moviesDB, Function<MoviesDB, MoviesDB.DeleteReport> delete, String name, int repetitions) {
+    int numOfMovies = moviesDB.movies.size();
+    int numOfActors = moviesDB.actors.size();
+    int numOfDirectors = moviesDB.directors.size();
+    fillCache(moviesDB);
+    MoviesDB.DeleteReport report = delete.apply(moviesDB);
+    boolean matches = report.numOfMovies == numOfMovies - moviesDB.movies.size();
+    matches &= report.numOfActors == numOfActors - moviesDB.actors.size();
+    matches &= report.numOfDirectors == numOfDirectors - moviesDB.directors.size();
+    printCheck(name + " report", 1, matches ? 0 : 1);
+    for (int i=0 ; i < repetitions ; i++) {
+      Random random = new Random(i);
+      checkCoActorCounts(moviesDB, random, "co-actor counts, " + name);
+      checkRankIndex(moviesDB, random, "rank index, " + name);
+      checkMoviesWithActorsInCommon(moviesDB, random, "movies with actors in common, " + name);
+    }
+  }
+
+  // Adds the given number of roles of random actors in random movies, one in
+  // ten of which go to a new movie, and another one in ten to a new actor,
+  // with the first ids that are not in use
+  static void addRandomRoles(MoviesDB moviesDB, Random random, int count) {
+    int newMovieId = moviesDB.movies.capacity();
+    int newActorId = moviesDB.actors.capacity();
+    moviesDB.addMovie(newMovieId, "Movie " + newMovieId, 2000 + random.nextInt(25), random.nextInt(101) / 10.0);
+    moviesDB.addActor(newActorId, "Actor", "" + newActorId, Actor.Gender.female);
+    for (int i=0 ; i < count ; i++) {
+      int movieId = newMovieId;
+      int actorId = newActorId;
+      if (i % 10 != 0)
+        do {
+          movieId = random.nextInt(newMovieId);
+        } while (moviesDB.movies.get(movieId) == null);
+      if (i % 10 != 1)
+        do {
+          actorId = random.nextInt(newActorId);
+        } while (moviesDB.actors.get(actorId) == null);
+      moviesDB.addRole(actorId, movieId, "Role " + i);
+    }
+  }
+
+  // Loads the dataset with the rank index and the cache of the results of
+  // moviesWithActorsInCommon(), whether or not they were requested, so that
+  // the checks always go through them
+  static MoviesDB readCheckedDB(String path) throws Exception {
+    MoviesDB moviesDB = readCsvFiles(path, false);
+    if (moviesDB.rankIndex == null)
+      moviesDB.useRankIndex();
+    if (moviesDB.moviesWithActorsInCommonCache == null)
+      moviesDB.useMoviesWithActorsInCommonCache(moviesDB.movies.capacity());
+    return moviesDB;
+  }
+
+  static void printCheck(String name, long numOfCases, long numOfMismatches) {
+    System.out.println(name + ": " + numOfCases + " cases, " + numOfMismatches + " mismatches");
+  }
+
+  // Checks CsvReader.readDouble() against Double.parseDouble(), on the rank
+  // column of movies.csv and on random values of the kinds that take each
+  // path of the parser, each of which is reported on its own: Clinger's fast
+  // path, Eisel-Lemire with significands of 19 digits, with and without the
+  // most significant bit set, and the values that have to be handed over to
+  // Double.parseDouble(): significands of 20 digits, that never get to
+  // DoubleParser, and subnormal values, which also count as mismatches if they
+  // don't get there, and values exactly halfway between two doubles, half of
+  // which Eisel-Lemire can still round. Values of the fast path count as
+  // mismatches if they get to Double.parseDouble()
+  static void checkDoubleParser(String path, Random random) throws Exception {
+    List<String> ranks = new ArrayList<String>();
+    String[] lines = new String(Files.readAllBytes(Paths.get(path + "/movies.csv")), StandardCharsets.ISO_8859_1).split("\n");
+    for (int i=1 ; i < lines.length ; i++)
+      ranks.add(lines[i].substring(lines[i].lastIndexOf(';') + 1).trim());
+    checkDoubles("doubles, movies.csv", ranks, null, random);
+
+    List<String> fastPath = new ArrayList<String>();
+    List<String> signed = new ArrayList<String>();
+    List<String> unsigned = new ArrayList<String>();
+    List<String> longSignificands = new ArrayList<String>();
+    List<String> subnormals = new ArrayList<String>();
+    List<String> exact = new ArrayList<String>();
+    List<String> halfway = new ArrayList<String>();
+    for (int i=0 ; i < 10000 ; i++) {
+      fastPath.add(decimalText(randomDigits(random, 1 + random.nextInt(15)), -random.nextInt(23)));
+      signed.add(decimalText((1 + random.nextInt(8)) + randomDigits(random, 18), random.nextInt(41) - 30));
+      unsigned.add(decimalText("9" + (3 + random.nextInt(7)) + randomDigits(random, 17), random.nextInt(41) - 30));
+      longSignificands.add(decimalText(randomDigits(random, 20 + random.nextInt(10)), random.nextInt(41) - 30));
+      // Below 10^-308, including values that round to zero or to the smallest subnormal
+      String digits = randomDigits(random, 1 + random.nextInt(19));
+      subnormals.add(decimalText(digits, -308 - digits.length() - random.nextInt(17)));
+      // Doubles between 2^53 and 2^64, and the points halfway between them and the next one
+      double value = Math.scalb(1 + random.nextDouble(), 53 + random.nextInt(11));
+      BigDecimal exactValue = new BigDecimal(value);
+      exact.add(exactValue.toPlainString());
+      halfway.add(exactValue.add(new BigDecimal(Math.nextUp(value))).divide(BigDecimal.valueOf(2)).toPlainString());
+    }
+    checkDoubles("doubles, fast path", fastPath, false, random);
+    checkDoubles("doubles, 19 digits", signed, null, random);
+    checkDoubles("doubles, 19 digits, unsigned", unsigned, null, random);
+    checkDoubles("doubles, 20 or more digits", longSignificands, true, random);
+    checkDoubles("doubles, subnormal", subnormals, true, random);
+    checkDoubles("doubles, exact", exact, null, random);
+    checkDoubles("doubles, halfway", halfway, null, random);
+  }
+
+  // Parses each of the texts, half of them with a minus sign, and checks the
+  // result, and whether it was handed over to Double.parseDouble(), if given
+  static void checkDoubles(String name, List<String> texts, Boolean fallback, Random random) {
+    int numOfMismatches = 0;
+    for (String text : texts) {
+      if (random.nextBoolean())
+        text = "-" + text;
+      byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+      CsvReader reader = new CsvReader(bytes);
+      double value = reader.readDouble();
+      if (reader.index != bytes.length || Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(Double.parseDouble(text)))
+        numOfMismatches++;
+      else if (fallback != null && fallback != (reader.numOfFallbacks > 0))
+        numOfMismatches++;
+    }
+    printCheck(name, texts.size(), numOfMismatches);
+  }
+
+  // Checks the counts of the movies random actors played in with each of their
+  // co-actors, as computed by coActorsWithCountInMoviesWithRankAbove(), which
+  // uses a map, and by the two queries that use DenseCounters, both with and
+  // without the role graph. The co-actors are checked against those found by
+  // coActorsInMoviesWithRankAbove(), and their counts against a scan of the
+  // roles of each co-actor, that is, from the other end of the links
+  static void checkCoActorCounts(MoviesDB moviesDB, Random random, String name) {
+    RoleGraph roleGraph = moviesDB.roleGraph;
+    for (int withRoleGraph=0 ; withRoleGraph < 2 ; withRoleGraph++) {
+      moviesDB.roleGraph = withRoleGraph == 0 ? null : roleGraph != null ? roleGraph : new RoleGraph(moviesDB.movies, moviesDB.actors);
+      int numOfCases = 0;
+      int numOfMismatches = 0;
+      for (int i=0 ; i < 1000 ; i++) {
+        Actor actor = moviesDB.actors.get(random.nextInt(moviesDB.actors.capacity()));
+        if (actor == null)
+          continue;
+        double minRank = 10 * random.nextDouble();
+        numOfCases++;
+
+        IdentityHashMap<Movie, Integer> rolesByMovie = new IdentityHashMap<Movie, Integer>();
+        for (Role r : actor.roles)
+          rolesByMovie.merge(r.movie, 1, Integer::sum);
+        Set<Actor> coActors = moviesDB.coActorsInMoviesWithRankAbove(actor, minRank);
+        HashMap<Actor, Integer> expected = new HashMap<Actor, Integer>();
+        for (Actor coActor : coActors)
+          for (Role r : coActor.roles)
+            if (r.movie.rank >= minRank && rolesByMovie.containsKey(r.movie))
+              expected.merge(coActor, rolesByMovie.get(r.movie), Integer::sum);
+
+        boolean matches = expected.equals(moviesDB.coActorsWithCountInMoviesWithRankAbove(actor, minRank));
+
+        MoviesDB.CoActorCounts counts = moviesDB.countCoActorsInMoviesWithRankAbove(actor, minRank);
+        matches &= counts.size() == expected.size();
+        for (int j=0 ; j < counts.size() ; j++)
+          matches &= expected.getOrDefault(moviesDB.actors.get(counts.actorIds[j]), 0) == counts.counts[j];
+
+        List<Actor> sorted = new ArrayList<Actor>(expected.keySet());
+        sorted.sort((a1, a2) -> expected.get(a1) != expected.get(a2).intValue() ? expected.get(a2) - expected.get(a1) : a1.id - a2.id);
+        int k = 1 + random.nextInt(10);
+        MoviesDB.CoActorCounts top = moviesDB.topCoActorsInMoviesWithRankAbove(actor, minRank, k);
+        matches &= top.size() == Math.min(k, sorted.size());
+        for (int j=0 ; j < top.size() ; j++)
+          matches &= top.actorIds[j] == sorted.get(j).id && top.counts[j] == expected.get(sorted.get(j));
+
+        if (!matches)
+          numOfMismatches++;
+      }
+      printCheck(withRoleGraph == 0 ? name : name + ", csr", numOfCases, numOfMismatches);
+    }
+    moviesDB.roleGraph = roleGraph;
+  }
+
+  // Checks the queries that use the rank index against the linear scans they
+  // replaced, for random thresholds: the number of movies whose rank is above
+  // and below them, the ids of the former, the histogram of their years and
+  // their average age. The columnar layout is detached while the scans run,
+  // so that they go through the Movie objects
+  static void checkRankIndex(MoviesDB moviesDB, Random random, String name) {
+    RankIndex rankIndex = moviesDB.rankIndex;
+    MovieColumns movieColumns = moviesDB.movieColumns;
+    moviesDB.movieColumns = null;
+    int numOfCases = 1000;
+    int numOfMismatches = 0;
+    for (int i=0 ; i < numOfCases ; i++) {
+      // Ranks have a single decimal digit, so a quarter of the thresholds are
+      // chosen among those values, to check how ties are handled
+      double minRank = random.nextInt(4) == 0 ? random.nextInt(101) / 10.0 : 11 * random.nextDouble() - 0.5;
+      int startYear = 1880 + random.nextInt(150);
+      int currYear = 2000 + random.nextInt(50);
+
+      moviesDB.rankIndex = rankIndex;
+      int count = moviesDB.numOfMoviesWithRankAbove(minRank);
+      int[] histogram = moviesDB.moviesAgeHistogram(startYear, minRank);
+      double avgAge = moviesDB.avgAgeOfMoviesWithRankAbove(currYear, minRank);
+      moviesDB.rankIndex = null;
+
+      boolean matches = rankIndex.size() == moviesDB.movies.size();
+      matches &= count == moviesDB.numOfMoviesWithRankAbove(minRank);
+      matches &= rankIndex.countBelow(minRank) == moviesDB.movies.size() - count;
+      matches &= Arrays.equals(histogram, moviesDB.moviesAgeHistogram(startYear, minRank));
+      matches &= Double.compare(avgAge, moviesDB.avgAgeOfMoviesWithRankAbove(currYear, minRank)) == 0;
+
+      int[] ids = rankIndex.idsAbove(minRank);
+      EpochSet seen = new EpochSet(moviesDB.movies.capacity());
+      matches &= ids.length == count;
+      for (int j=0 ; j < ids.length && matches ; j++) {
+        Movie m = moviesDB.movies.get(ids[j]);
+        matches &= m != null && m.rank >= minRank && seen.add(ids[j]);
+      }
+
+      if (!matches)
+        numOfMismatches++;
+    }
+    moviesDB.rankIndex = rankIndex;
+    moviesDB.movieColumns = movieColumns;
+    printCheck(name, numOfCases, numOfMismatches);
+  }
+
+  // Checks the results of idsOfMoviesWithActorsInCommon() for random movies,
+  // as returned by the cache, which may have been computed before the last
+  // updates, against those computed from scratch with the cache detached, and
+  // against moviesWithActorsInCommon(), the original query, which returns a set
+  static void checkMoviesWithActorsInCommon(MoviesDB moviesDB, Random random, String name) {
+    MovieResultsCache cache = moviesDB.moviesWithActorsInCommonCache;
+    int numOfCases = 0;
+    int numOfMismatches = 0;
+    for (int i=0 ; i < 1000 ; i++) {
+      Movie movie = moviesDB.movies.get(random.nextInt(moviesDB.movies.capacity()));
+      if (movie == null)
+        continue;
+      numOfCases++;
+
+      int[] ids = moviesDB.idsOfMoviesWithActorsInCommon(movie);
+      moviesDB.moviesWithActorsInCommonCache = null;
+      boolean matches = Arrays.equals(ids, moviesDB.idsOfMoviesWithActorsInCommon(movie));
+      moviesDB.moviesWithActorsInCommonCache = cache;
+
+      Set<Movie> movies = moviesDB.moviesWithActorsInCommon(movie);
+      matches &= ids.length == movies.size();
+      for (int id : ids)
+        matches &= movies.contains(moviesDB.movies.get(id));
+
+      if (!matches)
+        numOfMismatches++;
+    }
+    printCheck(name, numOfCases, numOfMismatches);
+  }
+
+  // Random sequence of digits, the first of which is not zero
+  static String randomDigits(Random random, int length) {
+    StringBuilder sb = new StringBuilder();
+    sb.append((char) ('1' + random.nextInt(9)));
+    for (int i=1 ; i < length ; i++)
+      sb.append((char) ('0' + random.nextInt(10)));
+    return sb.toString();
+  }
+
+  // Text of the number significand * 10^exponent, without an exponent
+  static String decimalText(String significand, int exponent) {
+    if (exponent >= 0)
+      return significand + "0".repeat(exponent);
+    int numOfIntDigits = significand.length() + exponent;
+    if (numOfIntDigits > 0)
+      return significand.substring(0, numOfIntDigits) + "." + significand.substring(numOfIntDigits);
+    return "0." + "0".repeat(-numOfIntDigits) + significand;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  //////////////////////////////////////////////////////////////////////////////
+
+  static void bumpUpRankOfMoviesMadeInOrBefore(MoviesDB moviesDB, int[] years, double[] factors, boolean printSep, int width) {
+    long indexTime = rankIndexTime(moviesDB);
+    long msecs1 = System.currentTimeMillis();
+    for (int i=0 ; i < years.length ; i++)
+      moviesDB.bumpUpRankOfMoviesMadeInOrBefore(years[i], factors[i]);
+    long msecs2 = System.currentTimeMillis();
+    printTime(msecs2 - msecs1 - (rankIndexTime(moviesDB) - indexTime) / 1000000, printSep, width);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  //////////////////////////////////////////////////////////////////////////////
+
+  // The average ranks of actors and directors are kept up to date, exactly,
+  // by every update, so there's nothing left to compute, but the columns are
+  // still printed, so that the output lines up with the other implementations
+  static void calcActorsAvgsMoviesRanks(MoviesDB moviesDB, boolean printSep, int width) {
+    printTime(0, printSep, width);
+  }
+
+  static void calcDirectorsAvgsMoviesRanks(MoviesDB moviesDB, boolean printSep, int width) {
+    printTime(0, printSep, width);
+  }
+
+  static void bumpUpRankOfMovieAndAllItsActorsAndDirectors(MoviesDB moviesDB, double factor, boolean printSep, int width) {
+    long indexTime = rankIndexTime(moviesDB);
+    long msecs1 = System.currentTimeMillis();
+
+    int maxId = maxMovieId(moviesDB);
+    int numOfIds = moviesDB.movies.size() / 4;
+    int[] randomIds = randomInts(maxId, numOfIds, 735025);
+
+    for (int id : randomIds) {
+      Movie movie = moviesDB.movies.get(id);
+      if (movie != null)
+        moviesDB.bumpUpRankOfMovieAndAllItsActorsAndDirectors(movie, factor);
+    }
+
+    long msecs2 = System.currentTimeMillis();
+    printTime(msecs2 - msecs1 - (rankIndexTime(moviesDB) - indexTime) / 1000000, printSep, width);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  //////////////////////////////////////////////////////////////////////////////
+
+  static void deleteMoviesWithRankBelow(MoviesDB moviesDB, double minRank, boolean printSep, int width) {
+    long indexTime = rankIndexTime(moviesDB);
+    long msecs1 = System.currentTimeMillis();
+    moviesDB.deleteMoviesWithRankBelow(minRank);
+    long msecs2 = System.currentTimeMillis();
+    printTime(msecs2 - msecs1 - (rankIndexTime(moviesDB) - indexTime) / 1000000, printSep, width);
+  }
+
+  static void deleteActorsWithNoRoles(MoviesDB moviesDB, boolean printSep, int width) {
+    long msecs1 = System.currentTimeMillis();
+    moviesDB.deleteActorsWithNoRoles();
+    long msecs2 = System.currentTimeMillis();
+    printTime(msecs2 - msecs1, printSep, width);
+  }
+
+  static void deleteDirectorsWithNoMovies(MoviesDB moviesDB, boolean printSep, int width) {
+    long msecs1 = System.currentTimeMillis();
+    moviesDB.deleteDirectorsWithNoMovies();
+    long msecs2 = System.currentTimeMillis();
+    printTime(msecs2 - msecs1, printSep, width);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+  //////////////////////////////////////////////////////////////////////////////
+
+  static void moviesWithActorsInCommon(MoviesDB moviesDB, boolean printSep, int width) {
+    long msecs1 = System.currentTimeMillis();
+
+    int maxMovieId = maxMovieId(moviesDB);
+    int numOfIds = moviesDB.movies.size() / 6;
+    int[] randomIds = randomInts(maxMovieId, numOfIds, 64798);
+
+    long count = 0;
+    int misses = 0;
+
+    for (int id : randomIds) {
+      Movie movie = moviesDB.movies.get(id);
+      if (movie != null) {
+        if (moviesDB.moviesWithActorsInCommonCache != null)
+          count += moviesDB.idsOfMoviesWithActorsInCommon(movie).length;
+        else
+          count += moviesDB.moviesWithActorsInCommon(movie).size();
+      }
+      else
+        misses++;
+    }
+
+    long msecs2 = System.currentTimeMillis();
+    printTime(msecs2 - msecs1, printSep, width);
+  }
+
+  static void moviesAgeHistogram(MoviesDB moviesDB, boolean printSep, int width) {
+    long msecs1 = System.currentTimeMillis();
+
+    int[] histogram;
+    for (int i=0 ; i < 50 ; i++)
+      histogram = moviesDB.moviesAgeHistogram(1900, 5.0 + i * 0.1);
+
+    long msecs2 = System.currentTimeMillis();
+    printTime(msecs2 - msecs1, printSep, width);
+  }
+
+  static void isAlsoActor(MoviesDB moviesDB, boolean printSep, int width) {
+    long msecs1 = System.currentTimeMillis();
+
+    long count = 0;
+    long otherCount = 0;
+    for (int id=0 ; id < moviesDB.directors.capacity() ; id++) {
+      Director d = moviesDB.directors.get(id);
+      if (d == null)
+        continue;
+      if (moviesDB.isAlsoActor(d))
+        count++;
+      else
+        otherCount++;
+    }
+
+    long msecs2 = System.currentTimeMillis();
+    printTime(msecs2 - msecs1, printSep, width);
+  }
+
+  static void fullName(MoviesDB moviesDB, boolean printSep, int width) {
+    long msecs1 = System.currentTimeMillis();
 
     long len = 0;
-    for (Actor a : moviesDB.actors.values()) {
+    for (int id=0 ; id < moviesDB.actors.capacity() ; id++) {
+      Actor a = moviesDB.actors.get(id);
+      if (a == null)
+        continue;
       String fullName = a.fullName();
       len += fullName.length();
     }
@@ -435,8 +1576,15 @@ class IMDB {
     long msecs1 = System.currentTimeMillis();
 
     int[] counts = new int[100];
-    for (int i=0 ; i < 100 ; i++)
-      counts[i] = moviesDB.numOfMoviesWithRankAbove((i+1) * 0.1);
+    if (batchedQueries) {
+      double[] minRanks = new double[100];
+      for (int i=0 ; i < 100 ; i++)
+        minRanks[i] = (i+1) * 0.1;
+      counts = moviesDB.numOfMoviesWithRankAbove(minRanks);
+    }
+    else
+      for (int i=0 ; i < 100 ; i++)
+        counts[i] = moviesDB.numOfMoviesWithRankAbove((i+1) * 0.1);
 
     long msecs2 = System.currentTimeMillis();
     printTime(msecs2 - msecs1, printSep, width);
@@ -458,14 +1606,23 @@ class IMDB {
 
     long maxCoActors = 0;
 
-    for (Actor a : moviesDB.actors.values()) {
-      // Actor[] coActors = moviesDB.coActorsInMoviesWithRankAbove(a, 6.0);
-      // if (coActors.length > maxCoActors)
-      //   maxCoActors = coActors.length;
-      Set<Actor> coActors = moviesDB.coActorsInMoviesWithRankAbove(a, 6.0);
-      if (coActors.size() > maxCoActors)
-        maxCoActors = coActors.size();
+    if (parallelSweep) {
+      for (int count : moviesDB.numsOfCoActorsInMoviesWithRankAbove(6.0, executor()))
+        if (count > maxCoActors)
+          maxCoActors = count;
     }
+    else
+      for (int id=0 ; id < moviesDB.actors.capacity() ; id++) {
+        Actor a = moviesDB.actors.get(id);
+        if (a == null)
+          continue;
+        // Actor[] coActors = moviesDB.coActorsInMoviesWithRankAbove(a, 6.0);
+        // if (coActors.length > maxCoActors)
+        //   maxCoActors = coActors.length;
+        Set<Actor> coActors = moviesDB.coActorsInMoviesWithRankAbove(a, 6.0);
+        if (coActors.size() > maxCoActors)
+          maxCoActors = coActors.size();
+      }
 
     long msecs2 = System.currentTimeMillis();
     printTime(msecs2 - msecs1, printSep, width);
@@ -484,9 +1641,13 @@ class IMDB {
     for (int id : randomIds) {
       Actor actor = moviesDB.actors.get(id);
       if (actor != null) {
-        Map<Actor, Integer> coActors = moviesDB.coActorsWithCountInMoviesWithRankAbove(actor, 6.0);
-        if (coActors.size() > maxCoActors)
-          maxCoActors = coActors.size();
+        int numOfCoActors;
+        if (denseCounters)
+          numOfCoActors = moviesDB.countCoActorsInMoviesWithRankAbove(actor, 6.0).size();
+        else
+          numOfCoActors = moviesDB.coActorsWithCountInMoviesWithRankAbove(actor, 6.0).size();
+        if (numOfCoActors > maxCoActors)
+          maxCoActors = numOfCoActors;
       }
       else
         misses++;
@@ -534,7 +1695,7 @@ class IMDB {
     for (int id : randomIds) {
       Actor actor = moviesDB.actors.get(id);
       if (actor != null) {
-        Set<String> actors = moviesDB.uniqueLastNamesOfActorsWithSameFirstNameAs(actor);
+        List<String> actors = moviesDB.uniqueLastNamesOfActorsWithSameFirstNameAs(actor);
         if (actors.size() > maxNo)
           maxNo = actors.size();
       }
@@ -549,24 +1710,24 @@ class IMDB {
   //////////////////////////////////////////////////////////////////////////////
 
   static int maxActorId(MoviesDB moviesDB) {
-    int maxId = 0;
-    for (Actor a : moviesDB.actors.values())
-      if (a.id > maxId)
-        maxId = a.id;
-    return maxId;
+    return Math.max(moviesDB.actors.maxId(), 0);
   }
 
   static int maxMovieId(MoviesDB moviesDB) {
-    int maxId = 0;
-    for (Movie m : moviesDB.movies.values())
-      if (m.id > maxId)
-        maxId = m.id;
-    return maxId;
+    return Math.max(moviesDB.movies.maxId(), 0);
   }
 
   //////////////////////////////////////////////////////////////////////////////
 
   static Map<String, Movie.Genre> genresMap;
+  static Map<String, Actor.Gender> gendersMap;
+
+  // Used to decode the genre and gender columns without allocating any string
+  static CsvDictionary genresDictionary;
+  static CsvDictionary gendersDictionary;
+
+  static Movie.Genre[] genres = Movie.Genre.values();
+  static Actor.Gender[] genders = Actor.Gender.values();
 
   static {
     genresMap = new HashMap<String, Movie.Genre>();
@@ -591,10 +1752,24 @@ class IMDB {
     genresMap.put("Thriller",     Movie.Genre.thriller);
     genresMap.put("War",          Movie.Genre.war);
     genresMap.put("Western",      Movie.Genre.western);
+
+    gendersMap = new HashMap<String, Actor.Gender>();
+    gendersMap.put("M", Actor.Gender.male);
+    gendersMap.put("F", Actor.Gender.female);
+
+    genresDictionary = new CsvDictionary(genresMap);
+    gendersDictionary = new CsvDictionary(gendersMap);
   }
 
   //////////////////////////////////////////////////////////////////////////////
 
+  static long retainedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i=0 ; i < 3 ; i++)
+      System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
   static void printTime(long time, boolean printSep, int width) {
     if (width > 0) {
       if (printSep)
@@ -623,13 +1798,50 @@ class IMDB {
 
 ////////////////////////////////////////////////////////////////////////////////
 
-class CsvReader {
+class CsvReader implements AutoCloseable {
   byte[] content;
   int    index;
+  int    length;
+
+  // Only used in streaming mode
+  FileChannel channel;
+  boolean     exhausted;
+  int         lastNewline; // Position of the last newline in the window, or -1
+
+  // Optional, used to deduplicate the strings that are read
+  StringPool pool;
+
+  // Number of values readDouble() handed over to Double.parseDouble()
+  int numOfFallbacks;
 
   public CsvReader(byte[] content) {
     this.content = content;
     index = 0;
+    length = content.length;
+  }
+
+  // Reads only the bytes between start (inclusive) and end (exclusive)
+  public CsvReader(byte[] content, int start, int end) {
+    this.content = content;
+    index = start;
+    length = end;
+  }
+
+  // Streaming mode: the file is read through a window, which is refilled at
+  // line boundaries whenever less than half of it is left, or what's left
+  // doesn't contain a whole line. The window grows whenever it's too small
+  // to hold a whole line, see refill()
+  public CsvReader(FileChannel channel, int windowSize) {
+    this.channel = channel;
+    content = new byte[windowSize];
+    index = 0;
+    length = 0;
+    refill();
+  }
+
+  public void close() throws IOException {
+    if (channel != null)
+      channel.close();
   }
 
   public void skip(char ch) {
@@ -641,6 +1853,8 @@ class CsvReader {
   public void skipLine() {
     while (!eof() && read() != '\n')
       ;
+    if (channel != null && !exhausted && (length - index < content.length / 2 || index > lastNewline))
+      refill();
   }
 
   public List<Object> readRow() {
@@ -650,7 +1864,7 @@ class CsvReader {
       if (eof())
         return row;
       if (nextIs('\n')) {
-        read();
+        skipLine();
         return row;
       }
       if (!nextIs(';')) {
@@ -681,79 +1895,2025 @@ class CsvReader {
     return neg ? -value : value;
   }
 
-  Double readDouble() {
+  // Returns the double that is closest to the decimal number in the input.
+  // The digits are accumulated into a 64-bit integer significand, which is
+  // then scaled by the appropriate power of ten by DoubleParser. Numbers with
+  // more than 19 significant digits, and the rare ones DoubleParser can't
+  // round with certainty, are handed over to Double.parseDouble()
+  double readDouble() {
+    int start = index;
     boolean neg = nextIs('-');
     if (neg)
       read();
-    check(Character.isDigit(peek()));
-    double value = read() - '0';
-    while (!eof() && Character.isDigit(peek()))
-      value = 10 * value + read() - '0';
-    if (eof() || !nextIs('.'))
-      return neg ? -value : value;
+    check(!eof() && Character.isDigit(peek()));
+
+    long significand = 0;
+    int numOfDigits = 0;
+    int exponent = 0;
+
+    for ( ; index < length ; index++) {
+      int digit = content[index] - '0';
+      if (digit < 0 || digit > 9)
+        break;
+      significand = 10 * significand + digit;
+      if (significand != 0)
+        numOfDigits++;
+    }
+
+    if (nextIs('.')) {
+      read();
+      for ( ; index < length ; index++) {
+        int digit = content[index] - '0';
+        if (digit < 0 || digit > 9)
+          break;
+        significand = 10 * significand + digit;
+        if (significand != 0)
+          numOfDigits++;
+        exponent--;
+      }
+    }
+
+    double value = numOfDigits <= 19 ? DoubleParser.toDouble(significand, exponent) : Double.NaN;
+    if (Double.isNaN(value)) {
+      numOfFallbacks++;
+      return Double.parseDouble(new String(content, start, index - start, StandardCharsets.ISO_8859_1));
+    }
+    return neg ? -value : value;
+  }
+
+  // Original parser, which adds up the digits of the fractional part multiplied
+  // by a weight that is repeatedly multiplied by 0.1. It's not exact, since
+  // rounding errors accumulate, and is only kept as a baseline for benchmarks
+  double readDoubleSimple() {
+    boolean neg = nextIs('-');
+    if (neg)
+      read();
+    check(Character.isDigit(peek()));
+    double value = read() - '0';
+    while (!eof() && Character.isDigit(peek()))
+      value = 10 * value + read() - '0';
+    if (eof() || !nextIs('.'))
+      return neg ? -value : value;
     read();
     double weigth = 0.1;
     while (!eof() && Character.isDigit(peek())) {
       value += weigth * (read() - '0');
       weigth = 0.1 * weigth;
     }
-    return value;
+    return value;
+  }
+
+  Number readNumber() {
+    int start = index;
+    boolean neg = nextIs('-');
+    if (neg)
+      read();
+    check(Character.isDigit(peek()));
+    long value = read() - '0';
+    while (!eof() && Character.isDigit(peek()))
+      value = 10 * value + read() - '0';
+    if (eof() || !nextIs('.'))
+      return neg ? -value : value;
+    index = start;
+    return readDouble();
+  }
+
+  String readString() {
+    if (pool != null) {
+      String str = readPooledString();
+      if (str != null)
+        return str;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    check(nextIs('"'));
+    read();
+    for ( ; ; ) {
+      char ch = read();
+      if (ch == '"')
+        if (!nextIs('"'))
+          return sb.toString();
+        else
+          read();
+      sb.append(ch);
+    }
+  }
+
+  // Reads a string that must be one of the keys of the dictionary,
+  // and returns the associated ordinal
+  int readEnum(CsvDictionary dictionary) {
+    check(nextIs('"'));
+    read();
+    int state = CsvDictionary.ROOT;
+    for ( ; ; ) {
+      check(index < length);
+      int b = content[index++];
+      if (b == '"')
+        break;
+      state = dictionary.next(state, b);
+    }
+    int ordinal = dictionary.ordinals[state];
+    check(ordinal != -1);
+    return ordinal;
+  }
+
+  // Looks up the raw bytes of the string in the pool, without decoding them
+  // first. Returns null without consuming any input if the string contains
+  // escaped quotes, or is not terminated, so that readString() can deal with it
+  String readPooledString() {
+    check(nextIs('"'));
+    int start = index + 1;
+    int hashcode = 0;
+    for (int i=start ; i < length ; i++) {
+      byte b = content[i];
+      if (b == '"') {
+        if (i + 1 < length && content[i+1] == '"')
+          return null;
+        index = i + 1;
+        return pool.get(content, start, i, hashcode);
+      }
+      hashcode = 31 * hashcode + b;
+    }
+    return null;
+  }
+
+  char read() {
+    return (char) content[index++];
+  }
+
+  char peek() {
+    return (char) content[index];
+  }
+
+  boolean nextIs(char ch) {
+    return index < length && content[index] == ch;
+  }
+
+  boolean eof() {
+    return index >= length;
+  }
+
+  // Moves what's left of the window to its start, and fills the rest of it.
+  // If the window then doesn't contain a whole line, its size is doubled until
+  // it does, or the file ends, so the next row never runs past the window.
+  // The position of the last newline tells skipLine() when to refill it again
+  void refill() {
+    int left = length - index;
+    System.arraycopy(content, index, content, 0, left);
+    index = 0;
+    length = left;
+    try {
+      for (int scanned = 0 ; ; ) {
+        ByteBuffer buffer = ByteBuffer.wrap(content, length, content.length - length);
+        while (buffer.hasRemaining())
+          if (channel.read(buffer) < 0) {
+            exhausted = true;
+            break;
+          }
+        length = buffer.position();
+        for (lastNewline = length - 1 ; lastNewline >= scanned ; lastNewline--)
+          if (content[lastNewline] == '\n')
+            return;
+        lastNewline = -1;
+        if (exhausted)
+          return;
+        scanned = length;
+        content = Arrays.copyOf(content, 2 * content.length);
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  void check(boolean cond) {
+    if (!cond)
+      throw new RuntimeException();
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Converts a decimal number, given as a 64-bit significand w and a power of
+// ten q, to the nearest double. When both w and 10^q are exactly representable
+// as doubles, a single multiplication or division (both correctly rounded)
+// does the job (Clinger's fast path). Otherwise the Eisel-Lemire algorithm is
+// used: w is multiplied by a 128-bit truncated approximation of 5^q, and the
+// most significant bits of the product give the significand of the result.
+// In the rare cases in which the truncation error makes the rounding
+// ambiguous, NaN is returned, and the caller has to fall back to an exact
+// algorithm. See Daniel Lemire, "Number Parsing at a Gigabyte per Second"
+class DoubleParser {
+  static final int MIN_EXPONENT = -325;
+  static final int MAX_EXPONENT = 308;
+
+  static final double[] POWERS_OF_TEN = {
+    1e0,  1e1,  1e2,  1e3,  1e4,  1e5,  1e6,  1e7,  1e8,  1e9,  1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  // Most and least significant halves of the 128-bit approximations of 5^q,
+  // normalized so that their most significant bit is set. For negative values
+  // of q they are rounded up, otherwise they're truncated
+  static final long[] POWERS_OF_FIVE_HIGH = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+  static final long[] POWERS_OF_FIVE_LOW  = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+
+  static {
+    BigInteger five = BigInteger.valueOf(5);
+    for (int q=MIN_EXPONENT ; q <= MAX_EXPONENT ; q++) {
+      BigInteger power;
+      if (q < 0) {
+        BigInteger divisor = five.pow(-q);
+        int z = divisor.bitLength();
+        int b = q >= -27 ? z + 127 : 2 * z + 128;
+        power = BigInteger.ONE.shiftLeft(b).divide(divisor).add(BigInteger.ONE);
+      }
+      else
+        power = five.pow(q);
+      int shift = power.bitLength() - 128;
+      power = shift >= 0 ? power.shiftRight(shift) : power.shiftLeft(-shift);
+      POWERS_OF_FIVE_HIGH[q - MIN_EXPONENT] = power.shiftRight(64).longValue();
+      POWERS_OF_FIVE_LOW[q - MIN_EXPONENT] = power.longValue();
+    }
+  }
+
+  public static double toDouble(long w, int q) {
+    if (w == 0)
+      return 0.0;
+    if (w > 0 && w <= (1L << 53) && q >= -22 && q <= 22)
+      return q < 0 ? w / POWERS_OF_TEN[-q] : w * POWERS_OF_TEN[q];
+    return eiselLemire(w, q);
+  }
+
+  static double eiselLemire(long w, int q) {
+    if (q < MIN_EXPONENT || q > MAX_EXPONENT)
+      return Double.NaN;
+
+    long exponent = (((152170 + 65536) * q) >> 16) + 1024 + 63;
+    int lz = Long.numberOfLeadingZeros(w);
+    w <<= lz;
+
+    long factorHigh = POWERS_OF_FIVE_HIGH[q - MIN_EXPONENT];
+    long lower = w * factorHigh;
+    long upper = unsignedMultiplyHigh(w, factorHigh);
+
+    // If the 9 bits below the 55 that are needed could be affected by
+    // the truncation of the power of five, the product is refined using
+    // its least significant half
+    if ((upper & 0x1FF) == 0x1FF && Long.compareUnsigned(lower + w, lower) < 0) {
+      long factorLow = POWERS_OF_FIVE_LOW[q - MIN_EXPONENT];
+      long productLow = w * factorLow;
+      long productMiddle = lower + unsignedMultiplyHigh(w, factorLow);
+      long productHigh = upper;
+      if (Long.compareUnsigned(productMiddle, lower) < 0)
+        productHigh++;
+      if (productMiddle + 1 == 0 && (productHigh & 0x1FF) == 0x1FF && Long.compareUnsigned(productLow + w, productLow) < 0)
+        return Double.NaN;
+      upper = productHigh;
+      lower = productMiddle;
+    }
+
+    long upperBit = upper >>> 63;
+    long mantissa = upper >>> (upperBit + 9);
+    lz += (int) (1 ^ upperBit);
+
+    // Exactly halfway between two doubles: can't tell which way to round
+    if (lower == 0 && (upper & 0x1FF) == 0 && (mantissa & 3) == 1)
+      return Double.NaN;
+
+    mantissa += mantissa & 1;
+    mantissa >>>= 1;
+    if (mantissa >= (1L << 53)) {
+      mantissa = 1L << 52;
+      lz--;
+    }
+    mantissa &= ~(1L << 52);
+
+    long realExponent = exponent - lz;
+    if (realExponent < 1 || realExponent > 2046)
+      return Double.NaN;
+
+    return Double.longBitsToDouble(mantissa | (realExponent << 52));
+  }
+
+  static long unsignedMultiplyHigh(long x, long y) {
+    return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Trie that maps the (ASCII) names of the values of an enumeration to their
+// ordinals, so that CsvReader can match the raw bytes of a field directly.
+// State 0 is a dead state, which all missing transitions lead to
+class CsvDictionary {
+  static final int DEAD = 0;
+  static final int ROOT = 1;
+
+  int[] transitions;
+  int[] ordinals;
+  int   numOfStates;
+
+  public CsvDictionary(Map<String, ? extends Enum<?>> values) {
+    int maxStates = 2;
+    for (String key : values.keySet())
+      maxStates += key.length();
+
+    transitions = new int[128 * maxStates];
+    ordinals = new int[maxStates];
+    Arrays.fill(ordinals, -1);
+    numOfStates = 2;
+
+    for (Map.Entry<String, ? extends Enum<?>> entry : values.entrySet()) {
+      String key = entry.getKey();
+      int state = ROOT;
+      for (int i=0 ; i < key.length() ; i++) {
+        char ch = key.charAt(i);
+        if (ch >= 128)
+          throw new IllegalArgumentException();
+        int idx = 128 * state + ch;
+        if (transitions[idx] == DEAD)
+          transitions[idx] = numOfStates++;
+        state = transitions[idx];
+      }
+      ordinals[state] = entry.getValue().ordinal();
+    }
+  }
+
+  public int next(int state, int b) {
+    return b >= 0 ? transitions[128 * state + b] : DEAD;
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Open addressing hash table of canonical strings, looked up directly by the
+// raw bytes they were decoded from. Bytes are decoded in the same way as
+// CsvReader.read() does, one char per byte
+class StringPool {
+  String[] strings;
+  int[]    hashcodes;
+  int      count;
+
+  public StringPool() {
+    strings = new String[1024];
+    hashcodes = new int[1024];
+  }
+
+  public String get(byte[] bytes, int start, int end, int hashcode) {
+    int mask = strings.length - 1;
+    int idx = hashcode & mask;
+    for ( ; ; ) {
+      String str = strings[idx];
+      if (str == null)
+        break;
+      if (hashcodes[idx] == hashcode && matches(str, bytes, start, end))
+        return str;
+      idx = (idx + 1) & mask;
+    }
+
+    char[] chars = new char[end - start];
+    for (int i=start ; i < end ; i++)
+      chars[i - start] = (char) bytes[i];
+    String str = new String(chars);
+
+    strings[idx] = str;
+    hashcodes[idx] = hashcode;
+    if (++count > strings.length / 2)
+      resize();
+    return str;
+  }
+
+  static boolean matches(String str, byte[] bytes, int start, int end) {
+    int len = end - start;
+    if (str.length() != len)
+      return false;
+    for (int i=0 ; i < len ; i++)
+      if (str.charAt(i) != (char) bytes[start + i])
+        return false;
+    return true;
+  }
+
+  void resize() {
+    String[] oldStrings = strings;
+    int[] oldHashcodes = hashcodes;
+    strings = new String[2 * oldStrings.length];
+    hashcodes = new int[2 * oldStrings.length];
+    int mask = strings.length - 1;
+    for (int i=0 ; i < oldStrings.length ; i++)
+      if (oldStrings[i] != null) {
+        int idx = oldHashcodes[i] & mask;
+        while (strings[idx] != null)
+          idx = (idx + 1) & mask;
+        strings[idx] = oldStrings[i];
+        hashcodes[idx] = oldHashcodes[i];
+      }
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Dictionary that assigns a dense integer code to every distinct first or last
+// name of actors and directors, so that names can be indexed, compared and
+// counted as ints. Codes are never reused, even after all the entities with
+// a given name have been deleted
+class NameDictionary {
+  String[] names;
+  int[]    slots; // Open addressing hash table of codes + 1, with 0 for empty slots
+  int      count;
+
+  public NameDictionary() {
+    names = new String[256];
+    slots = new int[512];
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public String name(int code) {
+    return names[code];
+  }
+
+  // Returns the code of the given name, or -1 if it's not in the dictionary
+  public int lookup(String name) {
+    int mask = slots.length - 1;
+    for (int idx = name.hashCode() & mask ; slots[idx] != 0 ; idx = (idx + 1) & mask)
+      if (names[slots[idx] - 1].equals(name))
+        return slots[idx] - 1;
+    return -1;
+  }
+
+  // Returns the code of the given name, adding the name if it's not there yet.
+  // It's synchronized because --pipeline loads actors and directors concurrently
+  public synchronized int encode(String name) {
+    int mask = slots.length - 1;
+    int idx = name.hashCode() & mask;
+    for ( ; slots[idx] != 0 ; idx = (idx + 1) & mask)
+      if (names[slots[idx] - 1].equals(name))
+        return slots[idx] - 1;
+
+    int code = count++;
+    if (code == names.length)
+      names = Arrays.copyOf(names, 2 * names.length);
+    names[code] = name;
+    slots[idx] = code + 1;
+    if (count > slots.length / 2)
+      resize();
+    return code;
+  }
+
+  void resize() {
+    slots = new int[2 * slots.length];
+    int mask = slots.length - 1;
+    for (int code=0 ; code < count ; code++) {
+      int idx = names[code].hashCode() & mask;
+      while (slots[idx] != 0)
+        idx = (idx + 1) & mask;
+      slots[idx] = code + 1;
+    }
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Map from non-negative ints to non-negative ints, as an open addressing hash
+// table with linear probing, so that neither keys nor values are boxed. Keys
+// are stored plus one, with 0 for empty slots. Removals shift back the entries
+// that follow in the same cluster instead of leaving tombstones, so lookups
+// never get slower after many insertions and removals of the same keys
+class IntIntMap {
+  int[] keys = new int[4];
+  int[] values = new int[4];
+  int   count;
+
+  public int size() {
+    return count;
+  }
+
+  // Returns the value associated with the key, or -1 if there's none
+  public int get(int key) {
+    int mask = keys.length - 1;
+    for (int idx = slot(key, mask) ; keys[idx] != 0 ; idx = (idx + 1) & mask)
+      if (keys[idx] == key + 1)
+        return values[idx];
+    return -1;
+  }
+
+  public void put(int key, int value) {
+    if (key < 0 || value < 0)
+      throw new RuntimeException();
+    int mask = keys.length - 1;
+    int idx = slot(key, mask);
+    for ( ; keys[idx] != 0 ; idx = (idx + 1) & mask)
+      if (keys[idx] == key + 1) {
+        values[idx] = value;
+        return;
+      }
+    keys[idx] = key + 1;
+    values[idx] = value;
+    if (++count > keys.length / 2)
+      resize();
+  }
+
+  public void remove(int key) {
+    int mask = keys.length - 1;
+    int idx = slot(key, mask);
+    while (keys[idx] != key + 1) {
+      if (keys[idx] == 0)
+        return;
+      idx = (idx + 1) & mask;
+    }
+    // An entry can be moved into the hole if its own slot is not between
+    // the hole (excluded) and where it is now, cyclically
+    for (int next = (idx + 1) & mask ; keys[next] != 0 ; next = (next + 1) & mask) {
+      int home = slot(keys[next] - 1, mask);
+      if (((next - home) & mask) >= ((next - idx) & mask)) {
+        keys[idx] = keys[next];
+        values[idx] = values[next];
+        idx = next;
+      }
+    }
+    keys[idx] = 0;
+    count--;
+  }
+
+  void resize() {
+    int[] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new int[2 * oldKeys.length];
+    values = new int[2 * oldKeys.length];
+    int mask = keys.length - 1;
+    for (int i=0 ; i < oldKeys.length ; i++)
+      if (oldKeys[i] != 0) {
+        int idx = slot(oldKeys[i] - 1, mask);
+        while (keys[idx] != 0)
+          idx = (idx + 1) & mask;
+        keys[idx] = oldKeys[i];
+        values[idx] = oldValues[i];
+      }
+  }
+
+  // Name codes are dense, so the bits are mixed before masking them
+  static int slot(int key, int mask) {
+    int hash = key * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// All the actors with the same first name, and the codes of their last names,
+// in two parallel arrays, together with the distinct last names and the number
+// of actors with each of them, also in two parallel arrays. The position of
+// each actor in the group is stored in the actor itself, and elements are
+// removed by moving the last one in their place, so that both insertions and
+// deletions take constant time
+class NameGroup {
+  Actor[] actors = new Actor[2];
+  int[]   lastNames = new int[2];
+  int     size;
+
+  int[] distinctLastNames = new int[2];
+  int[] multiplicities = new int[2];
+  int   numOfDistinct;
+
+  // Position of each distinct last name in the above arrays
+  IntIntMap distinctIdxs = new IntIntMap();
+
+  // Number of changes to the group, that invalidate the views taken before them
+  int modCount;
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean contains(Actor actor) {
+    int idx = actor.nameGroupIdx;
+    return idx < size && actors[idx] == actor;
+  }
+
+  public void add(Actor actor) {
+    modCount++;
+    if (size == actors.length) {
+      actors = Arrays.copyOf(actors, 2 * size);
+      lastNames = Arrays.copyOf(lastNames, 2 * size);
+    }
+    actor.nameGroupIdx = size;
+    actors[size] = actor;
+    lastNames[size++] = actor.lastNameCode;
+
+    int idx = distinctIdxs.get(actor.lastNameCode);
+    if (idx != -1) {
+      multiplicities[idx]++;
+      return;
+    }
+    if (numOfDistinct == distinctLastNames.length) {
+      distinctLastNames = Arrays.copyOf(distinctLastNames, 2 * numOfDistinct);
+      multiplicities = Arrays.copyOf(multiplicities, 2 * numOfDistinct);
+    }
+    distinctIdxs.put(actor.lastNameCode, numOfDistinct);
+    distinctLastNames[numOfDistinct] = actor.lastNameCode;
+    multiplicities[numOfDistinct++] = 1;
+  }
+
+  public void remove(Actor actor) {
+    if (!contains(actor))
+      throw new RuntimeException();
+    modCount++;
+    int idx = actor.nameGroupIdx;
+    Actor last = actors[--size];
+    actors[idx] = last;
+    lastNames[idx] = last.lastNameCode;
+    last.nameGroupIdx = idx;
+    actors[size] = null;
+
+    idx = distinctIdxs.get(actor.lastNameCode);
+    if (--multiplicities[idx] > 0)
+      return;
+    distinctIdxs.remove(actor.lastNameCode);
+    if (idx != --numOfDistinct) {
+      distinctLastNames[idx] = distinctLastNames[numOfDistinct];
+      multiplicities[idx] = multiplicities[numOfDistinct];
+      distinctIdxs.put(distinctLastNames[idx], idx);
+    }
+  }
+
+  // Read-only view of a prefix of an array of name codes, as strings, with one
+  // position (unless it's -1) left out. It reads the array of the group it was
+  // taken from, so it's only valid until the next change to that group, after
+  // which it throws a ConcurrentModificationException, instead of showing the
+  // wrong names
+  static class NamesView extends AbstractList<String> {
+    final NameGroup group;
+    final int expectedModCount;
+    final NameDictionary names;
+    final int[] codes;
+    final int size;
+    final int skippedIdx;
+
+    NamesView(NameGroup group, NameDictionary names, int[] codes, int length, int skippedIdx) {
+      this.group = group;
+      this.expectedModCount = group.modCount;
+      this.names = names;
+      this.codes = codes;
+      this.size = skippedIdx >= 0 ? length - 1 : length;
+      this.skippedIdx = skippedIdx;
+    }
+
+    public int size() {
+      checkForChanges();
+      return size;
+    }
+
+    public String get(int idx) {
+      checkForChanges();
+      if (idx < 0 || idx >= size)
+        throw new IndexOutOfBoundsException();
+      return names.name(codes[skippedIdx < 0 || idx < skippedIdx ? idx : idx + 1]);
+    }
+
+    void checkForChanges() {
+      if (group.modCount != expectedModCount)
+        throw new ConcurrentModificationException();
+    }
+  }
+
+  // Last names of all the actors in the group other than the given one. The
+  // list is a view, not a copy, that fails as soon as actors are added to or
+  // removed from the group, so callers that need to keep it across changes
+  // have to copy it first
+  public List<String> lastNamesOfOthers(Actor actor, NameDictionary names) {
+    return new NamesView(this, names, lastNames, size, contains(actor) ? actor.nameGroupIdx : -1);
+  }
+
+  // Distinct last names of all the actors in the group other than the given
+  // one. Like the one above, it's a view that later changes invalidate
+  public List<String> uniqueLastNamesOfOthers(Actor actor, NameDictionary names) {
+    int skippedIdx = -1;
+    if (contains(actor)) {
+      int idx = distinctIdxs.get(actor.lastNameCode);
+      if (multiplicities[idx] == 1)
+        skippedIdx = idx;
+    }
+    return new NamesView(this, names, distinctLastNames, numOfDistinct, skippedIdx);
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Rows parsed from a chunk of one of the files that link two entities,
+// stored as parallel columns. The third column is only used for roles
+class LinkChunk {
+  int[]    ids1;
+  int[]    ids2;
+  String[] strs;
+  int      size;
+
+  public LinkChunk(int capacity) {
+    ids1 = new int[capacity];
+    ids2 = new int[capacity];
+    strs = new String[capacity];
+  }
+
+  public void add(int id1, int id2, String str) {
+    if (size == ids1.length) {
+      int capacity = 2 * size;
+      ids1 = Arrays.copyOf(ids1, capacity);
+      ids2 = Arrays.copyOf(ids2, capacity);
+      strs = Arrays.copyOf(strs, capacity);
+    }
+    ids1[size] = id1;
+    ids2[size] = id2;
+    strs[size] = str;
+    size++;
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Table of objects keyed by non-negative integer ids, which are used directly
+// as indexes into an array, so there's no hashing and no boxing involved. The
+// memory it uses is proportional to the largest id, so it's only suitable for
+// compact ranges of ids, like those in the dataset. Iteration is done by index,
+// which doesn't allocate anything:
+//
+//   for (int id=0 ; id < table.capacity() ; id++) {
+//     V value = table.get(id);
+//     if (value != null)
+//       ...
+//   }
+class IntTable<V> {
+  Object[] values;
+  int      size;
+
+  public IntTable() {
+    this(16);
+  }
+
+  public IntTable(int capacity) {
+    values = new Object[Math.max(capacity, 1)];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  // Upper bound (exclusive) of the ids currently stored in the table
+  public int capacity() {
+    return values.length;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(int id) {
+    return id >= 0 && id < values.length ? (V) values[id] : null;
+  }
+
+  public void put(int id, V value) {
+    if (id < 0 || value == null)
+      throw new RuntimeException();
+    if (id >= values.length)
+      values = Arrays.copyOf(values, Math.max(2 * values.length, id + 1));
+    if (values[id] == null)
+      size++;
+    values[id] = value;
+  }
+
+  public V remove(int id) {
+    V value = get(id);
+    if (value != null) {
+      values[id] = null;
+      size--;
+    }
+    return value;
+  }
+
+  // Returns the largest id in the table, or -1 if it's empty
+  public int maxId() {
+    for (int id=values.length-1 ; id >= 0 ; id--)
+      if (values[id] != null)
+        return id;
+    return -1;
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Set of ids that can be emptied in constant time. Each id has a stamp, and it
+// belongs to the set if its stamp is equal to the current epoch, so clearing
+// the set only requires incrementing the epoch. Not thread-safe: every thread
+// needs its own
+class EpochSet {
+  int[] stamps;
+  int   epoch = 1;
+
+  public EpochSet(int capacity) {
+    stamps = new int[Math.max(capacity, 1)];
+  }
+
+  public void clear() {
+    // Stamps are reset when the epoch wraps around, which is
+    // the only way an old stamp could match the current epoch
+    if (++epoch == 0) {
+      Arrays.fill(stamps, 0);
+      epoch = 1;
+    }
+  }
+
+  // Adds the given id to the set, and returns false if it was already there
+  public boolean add(int id) {
+    if (id >= stamps.length)
+      stamps = Arrays.copyOf(stamps, Math.max(2 * stamps.length, id + 1));
+    if (stamps[id] == epoch)
+      return false;
+    stamps[id] = epoch;
+    return true;
+  }
+
+  public boolean contains(int id) {
+    return id < stamps.length && stamps[id] == epoch;
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Counters indexed by id, stored in a dense array. The ids whose counter is not
+// zero are also kept in a list, so that all counters can be reset in a time that
+// is proportional to their number. Not thread-safe, like EpochSet
+class DenseCounters {
+  int[] counts;
+  int[] touched;
+  int   numOfTouched;
+
+  public DenseCounters(int capacity) {
+    counts = new int[Math.max(capacity, 1)];
+    touched = new int[16];
+  }
+
+  public void increment(int id) {
+    if (id >= counts.length)
+      counts = Arrays.copyOf(counts, Math.max(2 * counts.length, id + 1));
+    if (counts[id]++ == 0) {
+      if (numOfTouched == touched.length)
+        touched = Arrays.copyOf(touched, 2 * touched.length);
+      touched[numOfTouched++] = id;
+    }
+  }
+
+  public void reset() {
+    for (int i=0 ; i < numOfTouched ; i++)
+      counts[touched[i]] = 0;
+    numOfTouched = 0;
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Bounded cache of the results of a query on a movie, stored as arrays of ids
+// and indexed by the id of the movie. When it's full, the least recently used
+// entry is evicted. The entries are nodes stored in parallel arrays, which are
+// allocated as needed up to the capacity, and linked through prev and next in
+// order of use, from the most recently used one (head) to the least recently
+// used one (tail), while the nodes that were freed are linked through next,
+// starting from free. The node of each movie is found through an IntIntMap,
+// so nothing is boxed. The counters are only meant for monitoring. Not
+// thread-safe
+class MovieResultsCache {
+  IntIntMap nodes = new IntIntMap();
+  int[]     movieIds = new int[16];
+  int[][]   results = new int[16][];
+  int[]     prev = new int[16];
+  int[]     next = new int[16];
+  int       numOfNodes = 0;
+  int       head = -1;
+  int       tail = -1;
+  int       free = -1;
+  int       capacity;
+
+  public long hits;
+  public long misses;
+  public long evictions;
+  public long invalidations;
+
+  public MovieResultsCache(int capacity) {
+    this.capacity = Math.max(capacity, 1);
+  }
+
+  public int size() {
+    return nodes.size();
+  }
+
+  // Returns the cached result for the given movie, or null if there's none
+  public int[] get(int movieId) {
+    int node = nodes.get(movieId);
+    if (node == -1) {
+      misses++;
+      return null;
+    }
+    hits++;
+    if (node != head) {
+      unlink(node);
+      linkFirst(node);
+    }
+    return results[node];
+  }
+
+  public void put(int movieId, int[] result) {
+    int node = nodes.get(movieId);
+    if (node != -1)
+      unlink(node);
+    else {
+      node = newNode();
+      nodes.put(movieId, node);
+      movieIds[node] = movieId;
+    }
+    results[node] = result;
+    linkFirst(node);
+  }
+
+  public void invalidate(int movieId) {
+    int node = nodes.get(movieId);
+    if (node != -1) {
+      unlink(node);
+      nodes.remove(movieId);
+      results[node] = null;
+      next[node] = free;
+      free = node;
+      invalidations++;
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  // Takes a free node, or a new one, or evicts the least recently used entry
+  int newNode() {
+    int node = free;
+    if (node != -1)
+      free = next[node];
+    else if (numOfNodes < capacity) {
+      if (numOfNodes == movieIds.length) {
+        int length = Math.min(2 * numOfNodes, capacity);
+        movieIds = Arrays.copyOf(movieIds, length);
+        results = Arrays.copyOf(results, length);
+        prev = Arrays.copyOf(prev, length);
+        next = Arrays.copyOf(next, length);
+      }
+      node = numOfNodes++;
+    }
+    else {
+      node = tail;
+      unlink(node);
+      nodes.remove(movieIds[node]);
+      evictions++;
+    }
+    return node;
+  }
+
+  void linkFirst(int node) {
+    prev[node] = -1;
+    next[node] = head;
+    if (head != -1)
+      prev[head] = node;
+    else
+      tail = node;
+    head = node;
+  }
+
+  void unlink(int node) {
+    if (prev[node] != -1)
+      next[prev[node]] = next[node];
+    else
+      head = next[node];
+    if (next[node] != -1)
+      prev[next[node]] = prev[node];
+    else
+      tail = prev[node];
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Columnar copy of the year and rank of all movies, in two arrays indexed by id,
+// which the queries that scan every movie can go through sequentially, without
+// touching the Movie objects. Empty slots have year 0 and NaN as rank, so they
+// fail every rank comparison and don't contribute to any sum of years.
+// The scans are done by the kernels in VectorScans when the Vector API is
+// available at runtime (that is, when the JVM is started with
+// --add-modules jdk.incubator.vector), and by plain loops otherwise
+class MovieColumns {
+  // Can be cleared to force the use of the scalar kernels
+  static boolean vectorKernels = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+  public int[]    years;
+  public double[] ranks;
+
+  public MovieColumns(int capacity) {
+    years = new int[capacity];
+    ranks = new double[capacity];
+    Arrays.fill(ranks, Double.NaN);
+  }
+
+  public int capacity() {
+    return years.length;
+  }
+
+  public void set(int id, int year, double rank) {
+    if (id >= years.length) {
+      int capacity = Math.max(2 * years.length, id + 1);
+      int oldCapacity = years.length;
+      years = Arrays.copyOf(years, capacity);
+      ranks = Arrays.copyOf(ranks, capacity);
+      Arrays.fill(ranks, oldCapacity, capacity, Double.NaN);
+    }
+    years[id] = year;
+    ranks[id] = rank;
+  }
+
+  public void clear(int id) {
+    years[id] = 0;
+    ranks[id] = Double.NaN;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  // Number of movies whose rank is at least minRank
+  public int countRankAbove(double minRank) {
+    if (vectorKernels)
+      return VectorScans.countAtLeast(ranks, minRank);
+    int count = 0;
+    for (int i=0 ; i < ranks.length ; i++)
+      if (ranks[i] >= minRank)
+        count++;
+    return count;
+  }
+
+  // Same as countRankAbove(), but for many thresholds at once, in a single pass
+  public int[] countRankAbove(double[] minRanks) {
+    if (vectorKernels)
+      return VectorScans.countAtLeast(ranks, minRanks);
+
+    // Every rank is counted only once, in the bucket of the largest threshold
+    // it satisfies (in the sorted list of thresholds), and the count for each
+    // threshold is then the sum of its bucket and of all the following ones
+    double[] sortedRanks = minRanks.clone();
+    Arrays.sort(sortedRanks);
+    int[] buckets = new int[sortedRanks.length + 1];
+    for (int i=0 ; i < ranks.length ; i++) {
+      double rank = ranks[i];
+      if (rank >= sortedRanks[0])
+        buckets[upperBound(sortedRanks, rank)]++;
+    }
+    for (int i=sortedRanks.length-1 ; i > 0 ; i--)
+      buckets[i] += buckets[i+1];
+
+    int[] counts = new int[minRanks.length];
+    for (int i=0 ; i < minRanks.length ; i++)
+      counts[i] = buckets[upperBound(sortedRanks, minRanks[i])];
+    return counts;
+  }
+
+  // Returns the number of movies whose rank is at least minRank in the first
+  // element of the result, and the sum of their years in the second one
+  public long[] countAndSumYearsRankAbove(double minRank) {
+    if (vectorKernels)
+      return VectorScans.countAndSumAtLeast(ranks, years, minRank);
+    long count = 0;
+    long totalYears = 0;
+    for (int i=0 ; i < ranks.length ; i++)
+      if (ranks[i] >= minRank) {
+        count++;
+        totalYears += years[i];
+      }
+    return new long[] {count, totalYears};
+  }
+
+  public long sumYears() {
+    if (vectorKernels)
+      return VectorScans.sum(years);
+    long totalYears = 0;
+    for (int i=0 ; i < years.length ; i++)
+      totalYears += years[i];
+    return totalYears;
+  }
+
+  public int[] ageHistogram(int startYear, double minRank) {
+    if (vectorKernels)
+      return VectorScans.histogram(ranks, years, minRank, startYear);
+    int[] histogram = new int[0];
+    for (int i=0 ; i < ranks.length ; i++)
+      if (ranks[i] >= minRank && years[i] >= startYear) {
+        int idx = years[i] - startYear;
+        if (idx >= histogram.length)
+          histogram = Arrays.copyOf(histogram, idx+1);
+        histogram[idx]++;
+      }
+    return histogram;
+  }
+
+  // Index of the first element of a sorted array that is greater than the given value
+  static int upperBound(double[] sortedValues, double value) {
+    int low = 0;
+    int high = sortedValues.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sortedValues[mid] <= value)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+}
+
+
+// SIMD versions of the scans of MovieColumns. When years have to be combined
+// with ranks, they are loaded using an int species with the same number of
+// lanes as the double one, so that they can be converted to doubles in place
+class VectorScans {
+  static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+  static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+  static final VectorSpecies<Integer> WIDE_INTS = IntVector.SPECIES_PREFERRED;
+
+  // Number of elements the multi-threshold scan goes through for each threshold
+  // before moving on to the next one, small enough for them to stay in L1
+  static final int BLOCK_SIZE = 2048;
+
+  // Number of elements whose sum can be accumulated in int lanes without any risk
+  // of overflow, given that years (and their sums) are not larger than 2^15
+  static final int SUM_BLOCK_SIZE = 1 << 16;
+
+  static int countAtLeast(double[] values, double min) {
+    int count = 0;
+    int bound = DOUBLES.loopBound(values.length);
+    int i = 0;
+    for ( ; i < bound ; i += DOUBLES.length())
+      count += DoubleVector.fromArray(DOUBLES, values, i).compare(VectorOperators.GE, min).trueCount();
+    for ( ; i < values.length ; i++)
+      if (values[i] >= min)
+        count++;
+    return count;
+  }
+
+  static int[] countAtLeast(double[] values, double[] mins) {
+    int[] counts = new int[mins.length];
+    for (int start=0 ; start < values.length ; start += BLOCK_SIZE) {
+      int end = Math.min(start + BLOCK_SIZE, values.length);
+      int bound = start + DOUBLES.loopBound(end - start);
+      for (int j=0 ; j < mins.length ; j++) {
+        double min = mins[j];
+        int count = 0;
+        int i = start;
+        for ( ; i < bound ; i += DOUBLES.length())
+          count += DoubleVector.fromArray(DOUBLES, values, i).compare(VectorOperators.GE, min).trueCount();
+        for ( ; i < end ; i++)
+          if (values[i] >= min)
+            count++;
+        counts[j] += count;
+      }
+    }
+    return counts;
+  }
+
+  // The weights are converted to doubles and summed as such, which is
+  // exact as long as the partial sums don't exceed 2^53
+  static long[] countAndSumAtLeast(double[] values, int[] weights, double min) {
+    long count = 0;
+    long total = 0;
+    int bound = DOUBLES.loopBound(values.length);
+    int i = 0;
+    DoubleVector acc = DoubleVector.zero(DOUBLES);
+    for ( ; i < bound ; i += DOUBLES.length()) {
+      VectorMask<Double> mask = DoubleVector.fromArray(DOUBLES, values, i).compare(VectorOperators.GE, min);
+      count += mask.trueCount();
+      DoubleVector weightsVector = (DoubleVector) IntVector.fromArray(INTS, weights, i).convertShape(VectorOperators.I2D, DOUBLES, 0);
+      acc = acc.add(weightsVector, mask);
+    }
+    total += (long) acc.reduceLanes(VectorOperators.ADD);
+    for ( ; i < values.length ; i++)
+      if (values[i] >= min) {
+        count++;
+        total += weights[i];
+      }
+    return new long[] {count, total};
+  }
+
+  static long sum(int[] values) {
+    long total = 0;
+    int bound = WIDE_INTS.loopBound(values.length);
+    int i = 0;
+    while (i < bound) {
+      int blockEnd = Math.min(bound, i + SUM_BLOCK_SIZE);
+      IntVector acc = IntVector.zero(WIDE_INTS);
+      for ( ; i < blockEnd ; i += WIDE_INTS.length())
+        acc = acc.add(IntVector.fromArray(WIDE_INTS, values, i));
+      total += acc.reduceLanesToLong(VectorOperators.ADD);
+    }
+    for ( ; i < values.length ; i++)
+      total += values[i];
+    return total;
+  }
+
+  // Only the comparison of the ranks is vectorized, the movies that pass
+  // it are then checked and added to the histogram one by one
+  static int[] histogram(double[] values, int[] years, double min, int startYear) {
+    int[] histogram = new int[0];
+    int bound = DOUBLES.loopBound(values.length);
+    int i = 0;
+    for ( ; i < bound ; i += DOUBLES.length()) {
+      long bits = DoubleVector.fromArray(DOUBLES, values, i).compare(VectorOperators.GE, min).toLong();
+      while (bits != 0) {
+        int year = years[i + Long.numberOfTrailingZeros(bits)];
+        bits &= bits - 1;
+        if (year >= startYear) {
+          int idx = year - startYear;
+          if (idx >= histogram.length)
+            histogram = Arrays.copyOf(histogram, idx+1);
+          histogram[idx]++;
+        }
+      }
+    }
+    for ( ; i < values.length ; i++)
+      if (values[i] >= min && years[i] >= startYear) {
+        int idx = years[i] - startYear;
+        if (idx >= histogram.length)
+          histogram = Arrays.copyOf(histogram, idx+1);
+        histogram[idx]++;
+      }
+    return histogram;
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Index of movies by rank, that counts the movies whose rank is above or below
+// any given threshold in logarithmic time. The range of ranks [0, 10] is split
+// into buckets of width 1/400, so that each of the ranks with one decimal digit
+// found in the dataset has a bucket of its own, and a Fenwick tree keeps the
+// number of movies in each bucket. A count only needs a prefix sum over the
+// buckets, plus a scan of the bucket the threshold falls into. The movies in a
+// bucket are not sorted, and the position of every movie in its bucket is kept
+// in an array indexed by id, so adding or removing a movie only takes constant
+// time, plus the update of the trees. Ranks outside [0, 10] go into the first
+// or the last bucket, NaN ranks are not indexed at all. The time spent
+// updating the index is kept in updateTime.
+// The index also keeps, for every year, a Fenwick tree with the number of
+// movies of that year in each bucket, that is a year by rank table of prefix
+// sums, so that the age histogram and the average age of the movies above a
+// given rank can be computed with a prefix sum for every year, and a scan of
+// the bucket the threshold falls into, whose entries include the year
+class RankIndex {
+  static final int BUCKETS_PER_UNIT = 400;
+  static final double MAX_RANK = 10.0;
+  static final int NUM_OF_BUCKETS = (int) (BUCKETS_PER_UNIT * MAX_RANK) + 1;
+
+  int[] tree = new int[NUM_OF_BUCKETS + 1];
+  double[][] bucketRanks = new double[NUM_OF_BUCKETS][];
+  int[][] bucketIds = new int[NUM_OF_BUCKETS][];
+  int[][] bucketYears = new int[NUM_OF_BUCKETS][];
+  int[] bucketSizes = new int[NUM_OF_BUCKETS];
+  int size = 0;
+
+  // Position of each movie in its bucket, indexed by id
+  int[] slots = new int[0];
+
+  // Fenwick trees and number of movies of each year, indexed by year - minYear.
+  // Trees are only allocated for the years that have at least one movie
+  int minYear = 0;
+  int[][] yearTrees = new int[0][];
+  int[] yearSizes = new int[0];
+
+  public long updateTime = 0;
+
+  public int size() {
+    return size;
+  }
+
+  public void add(int id, int year, double rank) {
+    if (Double.isNaN(rank))
+      return;
+    int bucket = bucket(rank);
+    int bucketSize = bucketSizes[bucket];
+    if (bucketRanks[bucket] == null) {
+      bucketRanks[bucket] = new double[16];
+      bucketIds[bucket] = new int[16];
+      bucketYears[bucket] = new int[16];
+    }
+    else if (bucketSize == bucketRanks[bucket].length) {
+      bucketRanks[bucket] = Arrays.copyOf(bucketRanks[bucket], 2 * bucketSize);
+      bucketIds[bucket] = Arrays.copyOf(bucketIds[bucket], 2 * bucketSize);
+      bucketYears[bucket] = Arrays.copyOf(bucketYears[bucket], 2 * bucketSize);
+    }
+    if (id >= slots.length)
+      slots = Arrays.copyOf(slots, Math.max(2 * slots.length, id + 1));
+    bucketRanks[bucket][bucketSize] = rank;
+    bucketIds[bucket][bucketSize] = id;
+    bucketYears[bucket][bucketSize] = year;
+    slots[id] = bucketSize;
+    bucketSizes[bucket]++;
+    size++;
+    addToTree(bucket, 1);
+    addToYearTree(year, bucket, 1);
   }
 
-  Number readNumber() {
-    boolean neg = nextIs('-');
-    if (neg)
-      read();
-    check(Character.isDigit(peek()));
-    long value = read() - '0';
-    while (!eof() && Character.isDigit(peek()))
-      value = 10 * value + read() - '0';
-    if (eof() || !nextIs('.'))
-      return neg ? -value : value;
-    read();
-    double floatValue = value;
-    double digitValue = 0.1;
-    while (!eof() && Character.isDigit(peek())) {
-      floatValue += digitValue * (read() - '0');
-      digitValue = 0.1 * digitValue;
+  // Removes a movie from the index, and returns its year. The last movie
+  // of the bucket is moved into the slot left free
+  public int remove(int id, double rank) {
+    if (Double.isNaN(rank))
+      return 0;
+    int bucket = bucket(rank);
+    int idx = id < slots.length ? slots[id] : -1;
+    if (idx < 0 || idx >= bucketSizes[bucket] || bucketIds[bucket][idx] != id)
+      throw new RuntimeException();
+    int year = bucketYears[bucket][idx];
+    removeAt(bucket, idx);
+    size--;
+    addToTree(bucket, -1);
+    addToYearTree(year, bucket, -1);
+    return year;
+  }
+
+  // Replaces the content of the index with all the movies in the given table
+  public void rebuild(IntTable<Movie> movies) {
+    long nanos1 = System.nanoTime();
+
+    Arrays.fill(bucketSizes, 0);
+    for (int id=0 ; id < movies.capacity() ; id++) {
+      Movie m = movies.get(id);
+      if (m != null && !Double.isNaN(m.rank))
+        bucketSizes[bucket(m.rank)]++;
     }
-    return floatValue;
+    for (int i=0 ; i < NUM_OF_BUCKETS ; i++) {
+      int capacity = Math.max(bucketSizes[i], 16);
+      if (bucketRanks[i] == null || bucketRanks[i].length < capacity) {
+        bucketRanks[i] = new double[capacity];
+        bucketIds[i] = new int[capacity];
+        bucketYears[i] = new int[capacity];
+      }
+    }
+    if (slots.length < movies.capacity())
+      slots = new int[movies.capacity()];
+
+    Arrays.fill(bucketSizes, 0);
+    Arrays.fill(tree, 0);
+    Arrays.fill(yearSizes, 0);
+    for (int[] yearTree : yearTrees)
+      if (yearTree != null)
+        Arrays.fill(yearTree, 0);
+    size = 0;
+    for (int id=0 ; id < movies.capacity() ; id++) {
+      Movie m = movies.get(id);
+      if (m != null && !Double.isNaN(m.rank)) {
+        int bucket = bucket(m.rank);
+        int idx = bucketSizes[bucket]++;
+        bucketRanks[bucket][idx] = m.rank;
+        bucketIds[bucket][idx] = id;
+        bucketYears[bucket][idx] = m.year;
+        slots[id] = idx;
+        addToYearTree(m.year, bucket, 1);
+        size++;
+      }
+    }
+    for (int i=0 ; i < NUM_OF_BUCKETS ; i++)
+      addToTree(i, bucketSizes[i]);
+
+    long nanos2 = System.nanoTime();
+    updateTime += nanos2 - nanos1;
   }
 
-  String readString() {
-    StringBuilder sb = new StringBuilder();
-    check(nextIs('"'));
-    read();
-    for ( ; ; ) {
-      char ch = read();
-      if (ch == '"')
-        if (!nextIs('"'))
-          return sb.toString();
-        else
-          read();
-      sb.append(ch);
+  public void removeAll(List<Movie> movies) {
+    long nanos1 = System.nanoTime();
+    for (Movie m : movies)
+      remove(m.id, m.rank);
+    long nanos2 = System.nanoTime();
+    updateTime += nanos2 - nanos1;
+  }
+
+  public void update(int id, double oldRank, double newRank) {
+    long nanos1 = System.nanoTime();
+    int year = remove(id, oldRank);
+    add(id, year, newRank);
+    long nanos2 = System.nanoTime();
+    updateTime += nanos2 - nanos1;
+  }
+
+  // Number of movies whose rank is at least minRank
+  public int countAbove(double minRank) {
+    if (Double.isNaN(minRank))
+      return 0;
+    return size - countBelow(minRank);
+  }
+
+  // Number of movies whose rank is lower than maxRank
+  public int countBelow(double maxRank) {
+    if (Double.isNaN(maxRank))
+      return 0;
+    int bucket = bucket(maxRank);
+    double[] ranks = bucketRanks[bucket];
+    int count = prefixSum(bucket);
+    for (int i=0 ; i < bucketSizes[bucket] ; i++)
+      if (ranks[i] < maxRank)
+        count++;
+    return count;
+  }
+
+  // Ids of the movies whose rank is at least minRank, in no particular order
+  public int[] idsAbove(double minRank) {
+    int[] result = new int[countAbove(minRank)];
+    if (result.length > 0) {
+      int bucket = bucket(minRank);
+      double[] ranks = bucketRanks[bucket];
+      int count = 0;
+      for (int i=0 ; i < bucketSizes[bucket] ; i++)
+        if (ranks[i] >= minRank)
+          result[count++] = bucketIds[bucket][i];
+      while (++bucket < NUM_OF_BUCKETS) {
+        System.arraycopy(bucketIds[bucket], 0, result, count, bucketSizes[bucket]);
+        count += bucketSizes[bucket];
+      }
     }
+    return result;
   }
 
-  char read() {
-    return (char) content[index++];
+  // Removes from the index all the movies whose rank is lower than maxRank,
+  // and returns their ids, in no particular order
+  public int[] removeBelow(double maxRank) {
+    long nanos1 = System.nanoTime();
+    int[] result = new int[countBelow(maxRank)];
+    if (result.length > 0) {
+      int lastBucket = bucket(maxRank);
+      int count = 0;
+      for (int bucket=0 ; bucket < lastBucket ; bucket++) {
+        int bucketSize = bucketSizes[bucket];
+        int[] years = bucketYears[bucket];
+        for (int i=0 ; i < bucketSize ; i++)
+          addToYearTree(years[i], bucket, -1);
+        System.arraycopy(bucketIds[bucket], 0, result, count, bucketSize);
+        count += bucketSize;
+        bucketSizes[bucket] = 0;
+        addToTree(bucket, -bucketSize);
+      }
+      // Going backwards, the entry moved into a free slot has already been checked
+      double[] ranks = bucketRanks[lastBucket];
+      for (int i=bucketSizes[lastBucket]-1 ; i >= 0 ; i--)
+        if (ranks[i] < maxRank) {
+          result[count++] = bucketIds[lastBucket][i];
+          addToYearTree(bucketYears[lastBucket][i], lastBucket, -1);
+          addToTree(lastBucket, -1);
+          removeAt(lastBucket, i);
+        }
+      size -= result.length;
+    }
+    long nanos2 = System.nanoTime();
+    updateTime += nanos2 - nanos1;
+    return result;
   }
 
-  char peek() {
-    return (char) content[index];
+  // Number of movies whose rank is at least minRank made in every year
+  // from startYear on, with the same layout as MoviesDB.moviesAgeHistogram()
+  public int[] ageHistogram(int startYear, double minRank) {
+    int[] histogram = new int[0];
+    if (Double.isNaN(minRank))
+      return histogram;
+
+    int bucket = bucket(minRank);
+    int firstYear = Math.max(startYear, minYear);
+    int endYear = minYear + yearTrees.length;
+    if (firstYear < endYear) {
+      histogram = new int[endYear - startYear];
+      for (int year=firstYear ; year < endYear ; year++)
+        if (yearTrees[year - minYear] != null)
+          histogram[year - startYear] = yearSizes[year - minYear] - yearPrefixSum(year, bucket + 1);
+    }
+
+    double[] ranks = bucketRanks[bucket];
+    int[] years = bucketYears[bucket];
+    for (int i=0 ; i < bucketSizes[bucket] ; i++)
+      if (ranks[i] >= minRank && years[i] >= startYear)
+        histogram[years[i] - startYear]++;
+
+    int length = histogram.length;
+    while (length > 0 && histogram[length-1] == 0)
+      length--;
+    return length < histogram.length ? Arrays.copyOf(histogram, length) : histogram;
   }
 
-  boolean nextIs(char ch) {
-    return index < content.length && content[index] == ch;
+  // Returns the number of movies whose rank is at least minRank in the first
+  // element of the result, and the sum of their years in the second one
+  public long[] countAndSumYearsAbove(double minRank) {
+    long count = 0;
+    long totalYears = 0;
+    if (Double.isNaN(minRank))
+      return new long[] {count, totalYears};
+
+    int bucket = bucket(minRank);
+    for (int i=0 ; i < yearTrees.length ; i++)
+      if (yearTrees[i] != null) {
+        int yearCount = yearSizes[i] - yearPrefixSum(minYear + i, bucket + 1);
+        count += yearCount;
+        totalYears += yearCount * (long) (minYear + i);
+      }
+
+    double[] ranks = bucketRanks[bucket];
+    int[] years = bucketYears[bucket];
+    for (int i=0 ; i < bucketSizes[bucket] ; i++)
+      if (ranks[i] >= minRank) {
+        count++;
+        totalYears += years[i];
+      }
+
+    return new long[] {count, totalYears};
   }
 
-  boolean eof() {
-    return index >= content.length;
+  //////////////////////////////////////////////////////////////////////////////
+
+  static int bucket(double rank) {
+    if (rank <= 0)
+      return 0;
+    if (rank >= MAX_RANK)
+      return NUM_OF_BUCKETS - 1;
+    return Math.min((int) (rank * BUCKETS_PER_UNIT), NUM_OF_BUCKETS - 1);
   }
 
-  void check(boolean cond) {
-    if (!cond)
-      throw new RuntimeException();
+  // Moves the last entry of the bucket into the given slot
+  void removeAt(int bucket, int idx) {
+    int last = --bucketSizes[bucket];
+    if (idx != last) {
+      bucketRanks[bucket][idx] = bucketRanks[bucket][last];
+      bucketIds[bucket][idx] = bucketIds[bucket][last];
+      bucketYears[bucket][idx] = bucketYears[bucket][last];
+      slots[bucketIds[bucket][idx]] = idx;
+    }
+  }
+
+  // Fenwick tree over the sizes of the buckets
+  void addToTree(int bucket, int delta) {
+    for (int i=bucket+1 ; i <= NUM_OF_BUCKETS ; i += i & -i)
+      tree[i] += delta;
+  }
+
+  // Total number of movies in the buckets before the given one
+  int prefixSum(int bucket) {
+    int sum = 0;
+    for (int i=bucket ; i > 0 ; i -= i & -i)
+      sum += tree[i];
+    return sum;
+  }
+
+  void addToYearTree(int year, int bucket, int delta) {
+    if (yearTrees.length == 0)
+      minYear = year;
+    if (year < minYear) {
+      int shift = minYear - year;
+      int[][] newYearTrees = new int[yearTrees.length + shift][];
+      System.arraycopy(yearTrees, 0, newYearTrees, shift, yearTrees.length);
+      int[] newYearSizes = new int[yearSizes.length + shift];
+      System.arraycopy(yearSizes, 0, newYearSizes, shift, yearSizes.length);
+      yearTrees = newYearTrees;
+      yearSizes = newYearSizes;
+      minYear = year;
+    }
+    else if (year - minYear >= yearTrees.length) {
+      yearTrees = Arrays.copyOf(yearTrees, year - minYear + 1);
+      yearSizes = Arrays.copyOf(yearSizes, year - minYear + 1);
+    }
+
+    int[] yearTree = yearTrees[year - minYear];
+    if (yearTree == null) {
+      yearTree = new int[NUM_OF_BUCKETS + 1];
+      yearTrees[year - minYear] = yearTree;
+    }
+    for (int i=bucket+1 ; i <= NUM_OF_BUCKETS ; i += i & -i)
+      yearTree[i] += delta;
+    yearSizes[year - minYear] += delta;
+  }
+
+  // Number of movies of the given year in the buckets before the given one
+  int yearPrefixSum(int year, int bucket) {
+    int[] yearTree = yearTrees[year - minYear];
+    int sum = 0;
+    for (int i=bucket ; i > 0 ; i -= i & -i)
+      sum += yearTree[i];
+    return sum;
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Compressed sparse row copy of the links between movies and actors, used to
+// speed up the traversals. The Role objects are still the primary storage of
+// the links, so it adds to the memory used. The ids of the actors of movie m
+// are movieActors[movieOffsets[m] .. movieEnds[m]), in the same order as in
+// m.actors, and the descriptions of the corresponding roles are in movieRoles,
+// at the same positions. The movies of each actor are stored in the same way,
+// in actorOffsets, actorEnds and actorMovies.
+// The rows are packed one after the other when the graph is built, and the
+// links added later are appended to their rows, if there's room left. A row
+// that is full is moved to the end of the arrays, with room for as many links
+// again, so that the end of the arrays works as a buffer of the rows that have
+// changed since the graph was built. Deleting a movie only marks it as deleted,
+// and the traversals skip its links. Both the links of the deleted movies and
+// the space left behind by the rows that were moved are merged away by
+// rebuilding the graph from the Movie and Actor objects, which is done before
+// the next traversal if they make up more than a quarter of the links
+class RoleGraph {
+  public int[]    movieOffsets;
+  public int[]    movieEnds;
+  public int[]    movieActors;
+  public String[] movieRoles;
+  public int[]    actorOffsets;
+  public int[]    actorEnds;
+  public int[]    actorMovies;
+
+  public boolean[] deletedMovies;
+
+  // End of the space reserved for each row, and of the used part of the arrays
+  int[] movieLimits;
+  int[] actorLimits;
+  int movieLinksEnd;
+  int actorLinksEnd;
+
+  int numOfLinks;
+  int numOfDeletedLinks;
+  int numOfMovedLinks;
+  boolean stale;
+
+  public RoleGraph(IntTable<Movie> movies, IntTable<Actor> actors) {
+    rebuild(movies, actors);
+  }
+
+  public void rebuild(IntTable<Movie> movies, IntTable<Actor> actors) {
+    int numOfMovieIds = movies.capacity();
+    int numOfActorIds = actors.capacity();
+
+    movieOffsets = new int[numOfMovieIds];
+    movieEnds = new int[numOfMovieIds];
+    movieLinksEnd = 0;
+    for (int id=0 ; id < numOfMovieIds ; id++) {
+      Movie m = movies.get(id);
+      movieOffsets[id] = movieLinksEnd;
+      movieLinksEnd += m != null ? m.actors.size() : 0;
+      movieEnds[id] = movieLinksEnd;
+    }
+    movieLimits = movieEnds.clone();
+
+    actorOffsets = new int[numOfActorIds];
+    actorEnds = new int[numOfActorIds];
+    actorLinksEnd = 0;
+    for (int id=0 ; id < numOfActorIds ; id++) {
+      Actor a = actors.get(id);
+      actorOffsets[id] = actorLinksEnd;
+      actorLinksEnd += a != null ? a.roles.size() : 0;
+      actorEnds[id] = actorLinksEnd;
+    }
+    actorLimits = actorEnds.clone();
+
+    numOfLinks = movieLinksEnd;
+    movieActors = new int[numOfLinks];
+    movieRoles = new String[numOfLinks];
+    for (int id=0 ; id < numOfMovieIds ; id++) {
+      Movie m = movies.get(id);
+      if (m == null)
+        continue;
+      int offset = movieOffsets[id];
+      for (Role r : m.actors) {
+        movieActors[offset] = r.actor.id;
+        movieRoles[offset++] = r.role;
+      }
+    }
+
+    actorMovies = new int[actorLinksEnd];
+    for (int id=0 ; id < numOfActorIds ; id++) {
+      Actor a = actors.get(id);
+      if (a == null)
+        continue;
+      int offset = actorOffsets[id];
+      for (Role r : a.roles)
+        actorMovies[offset++] = r.movie.id;
+    }
+
+    deletedMovies = new boolean[numOfMovieIds];
+    numOfDeletedLinks = 0;
+    numOfMovedLinks = 0;
+    stale = false;
+  }
+
+  // Adds empty rows for the ids of the movies and actors that are not in the
+  // graph yet. A movie that is added with the id of a deleted one would still
+  // be found through the rows of the actors of the latter, so that requires a
+  // full rebuild
+  public void ensureCapacity(int numOfMovieIds, int numOfActorIds) {
+    if (numOfMovieIds > movieOffsets.length) {
+      int length = movieOffsets.length;
+      movieOffsets = Arrays.copyOf(movieOffsets, numOfMovieIds);
+      movieEnds = Arrays.copyOf(movieEnds, numOfMovieIds);
+      movieLimits = Arrays.copyOf(movieLimits, numOfMovieIds);
+      deletedMovies = Arrays.copyOf(deletedMovies, numOfMovieIds);
+      Arrays.fill(movieOffsets, length, numOfMovieIds, movieLinksEnd);
+      Arrays.fill(movieEnds, length, numOfMovieIds, movieLinksEnd);
+      Arrays.fill(movieLimits, length, numOfMovieIds, movieLinksEnd);
+    }
+    if (numOfActorIds > actorOffsets.length) {
+      int length = actorOffsets.length;
+      actorOffsets = Arrays.copyOf(actorOffsets, numOfActorIds);
+      actorEnds = Arrays.copyOf(actorEnds, numOfActorIds);
+      actorLimits = Arrays.copyOf(actorLimits, numOfActorIds);
+      Arrays.fill(actorOffsets, length, numOfActorIds, actorLinksEnd);
+      Arrays.fill(actorEnds, length, numOfActorIds, actorLinksEnd);
+      Arrays.fill(actorLimits, length, numOfActorIds, actorLinksEnd);
+    }
+  }
+
+  public void addMovie(int id, int numOfMovieIds) {
+    ensureCapacity(numOfMovieIds, 0);
+    if (deletedMovies[id])
+      stale = true;
+  }
+
+  public void addRole(int movieId, int actorId, String role) {
+    if (stale)
+      return;
+    if (movieEnds[movieId] == movieLimits[movieId])
+      moveMovieRow(movieId);
+    movieActors[movieEnds[movieId]] = actorId;
+    movieRoles[movieEnds[movieId]++] = role;
+    if (actorEnds[actorId] == actorLimits[actorId])
+      moveActorRow(actorId);
+    actorMovies[actorEnds[actorId]++] = movieId;
+    numOfLinks++;
+  }
+
+  public void deleteMovie(int id) {
+    if (!stale && !deletedMovies[id]) {
+      deletedMovies[id] = true;
+      numOfDeletedLinks += movieEnds[id] - movieOffsets[id];
+    }
+  }
+
+  public void markStale() {
+    stale = true;
+  }
+
+  public boolean needsRebuild() {
+    return stale || numOfDeletedLinks + numOfMovedLinks > numOfLinks / 4;
+  }
+
+  // Approximate amount of memory used by the graph, in bytes
+  public long memoryUsed() {
+    return 12L * (movieOffsets.length + actorOffsets.length) + 4L * (movieActors.length + movieRoles.length + actorMovies.length) + deletedMovies.length;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  void moveMovieRow(int id) {
+    int size = movieEnds[id] - movieOffsets[id];
+    int capacity = Math.max(2 * size, 4);
+    if (movieLinksEnd + capacity > movieActors.length) {
+      int length = Math.max(movieActors.length + movieActors.length / 2, movieLinksEnd + capacity);
+      movieActors = Arrays.copyOf(movieActors, length);
+      movieRoles = Arrays.copyOf(movieRoles, length);
+    }
+    System.arraycopy(movieActors, movieOffsets[id], movieActors, movieLinksEnd, size);
+    System.arraycopy(movieRoles, movieOffsets[id], movieRoles, movieLinksEnd, size);
+    Arrays.fill(movieRoles, movieOffsets[id], movieEnds[id], null);
+    numOfMovedLinks += size;
+    movieOffsets[id] = movieLinksEnd;
+    movieEnds[id] = movieLinksEnd + size;
+    movieLimits[id] = movieLinksEnd + capacity;
+    movieLinksEnd += capacity;
+  }
+
+  void moveActorRow(int id) {
+    int size = actorEnds[id] - actorOffsets[id];
+    int capacity = Math.max(2 * size, 4);
+    if (actorLinksEnd + capacity > actorMovies.length)
+      actorMovies = Arrays.copyOf(actorMovies, Math.max(actorMovies.length + actorMovies.length / 2, actorLinksEnd + capacity));
+    System.arraycopy(actorMovies, actorOffsets[id], actorMovies, actorLinksEnd, size);
+    numOfMovedLinks += size;
+    actorOffsets[id] = actorLinksEnd;
+    actorEnds[id] = actorLinksEnd + size;
+    actorLimits[id] = actorLinksEnd + capacity;
+    actorLinksEnd += capacity;
+  }
+}
+
+////////////////////////////////////////////////////////////////////////////////
+
+// Co-actors of all actors, in compressed sparse row form. Each edge also stores
+// the number of times the two actors appear in the same cast, and the highest
+// rank of the movies they played in together, so the co-actors of an actor in
+// movies with rank above a given threshold can be found by scanning its edges.
+// Since the number of edges grows with the square of the size of the casts,
+// movies with more actors than a given limit are left out of the graph, and
+// their casts are expanded at query time: the ids of those movies are stored,
+// for each actor, in a second, smaller, sparse row array
+class CoActorGraph {
+  public int[]    offsets;
+  public int[]    coActors;
+  public int[]    counts;
+  public double[] maxRanks;
+
+  public int[] hubOffsets;
+  public int[] hubMovies;
+
+  final int maxCastSize;
+  final ExecutorService executor;
+  boolean stale;
+
+  // Scratch sets of actor ids and ranks used by updateRank()
+  EpochSet castIds;
+  EpochSet patchedIds;
+  double[] patchedRanks;
+
+  // Edges of a range of actors, built by a single task
+  static class Chunk {
+    int      first;
+    int[]    degrees;
+    int[]    coActors = new int[1024];
+    int[]    counts = new int[1024];
+    double[] maxRanks = new double[1024];
+    int      numOfEdges;
+    int[]    hubDegrees;
+    int[]    hubMovies = new int[16];
+    int      numOfHubLinks;
+  }
+
+  public CoActorGraph(int maxCastSize, ExecutorService executor) {
+    this.maxCastSize = maxCastSize;
+    this.executor = executor;
+  }
+
+  // The actors are split into ranges of ids, whose edges are found in parallel,
+  // and then copied into the final arrays, one range after the other
+  public void rebuild(IntTable<Actor> actors) {
+    int numOfIds = actors.capacity();
+    int numOfTasks = 4 * Runtime.getRuntime().availableProcessors();
+    int rangeSize = (numOfIds + numOfTasks - 1) / numOfTasks;
+    List<CompletableFuture<Chunk>> tasks = new ArrayList<CompletableFuture<Chunk>>();
+    for (int i=0 ; i < numOfTasks ; i++) {
+      int first = Math.min(i * rangeSize, numOfIds);
+      int last = Math.min(first + rangeSize, numOfIds);
+      tasks.add(CompletableFuture.supplyAsync(() -> buildChunk(actors, first, last), executor));
+    }
+
+    offsets = new int[numOfIds + 1];
+    hubOffsets = new int[numOfIds + 1];
+    List<Chunk> chunks = new ArrayList<Chunk>();
+    for (CompletableFuture<Chunk> task : tasks) {
+      Chunk chunk = task.join();
+      chunks.add(chunk);
+      for (int i=0 ; i < chunk.degrees.length ; i++) {
+        int id = chunk.first + i;
+        offsets[id+1] = offsets[id] + chunk.degrees[i];
+        hubOffsets[id+1] = hubOffsets[id] + chunk.hubDegrees[i];
+      }
+    }
+
+    coActors = new int[offsets[numOfIds]];
+    counts = new int[offsets[numOfIds]];
+    maxRanks = new double[offsets[numOfIds]];
+    hubMovies = new int[hubOffsets[numOfIds]];
+    for (Chunk chunk : chunks) {
+      int offset = offsets[chunk.first];
+      System.arraycopy(chunk.coActors, 0, coActors, offset, chunk.numOfEdges);
+      System.arraycopy(chunk.counts, 0, counts, offset, chunk.numOfEdges);
+      System.arraycopy(chunk.maxRanks, 0, maxRanks, offset, chunk.numOfEdges);
+      System.arraycopy(chunk.hubMovies, 0, hubMovies, hubOffsets[chunk.first], chunk.numOfHubLinks);
+    }
+
+    castIds = null;
+    patchedIds = null;
+    patchedRanks = null;
+    stale = false;
+  }
+
+  Chunk buildChunk(IntTable<Actor> actors, int first, int last) {
+    Chunk chunk = new Chunk();
+    chunk.first = first;
+    chunk.degrees = new int[last - first];
+    chunk.hubDegrees = new int[last - first];
+    DenseCounters counters = new DenseCounters(actors.capacity());
+    double[] ranks = new double[actors.capacity()];
+
+    for (int id=first ; id < last ; id++) {
+      Actor a = actors.get(id);
+      if (a == null)
+        continue;
+
+      for (Role r1 : a.roles) {
+        Movie m = r1.movie;
+        if (m.actors.size() > maxCastSize) {
+          if (chunk.numOfHubLinks == chunk.hubMovies.length)
+            chunk.hubMovies = Arrays.copyOf(chunk.hubMovies, 2 * chunk.hubMovies.length);
+          chunk.hubMovies[chunk.numOfHubLinks++] = m.id;
+          chunk.hubDegrees[id - first]++;
+          continue;
+        }
+        for (Role r2 : m.actors) {
+          int coActorId = r2.actor.id;
+          if (coActorId == id)
+            continue;
+          counters.increment(coActorId);
+          // Movies without a rank (NaN) don't count towards the highest one
+          if (counters.counts[coActorId] == 1)
+            ranks[coActorId] = Double.NEGATIVE_INFINITY;
+          if (m.rank > ranks[coActorId])
+            ranks[coActorId] = m.rank;
+        }
+      }
+
+      int degree = counters.numOfTouched;
+      int size = chunk.numOfEdges + degree;
+      if (size > chunk.coActors.length) {
+        int capacity = Math.max(2 * chunk.coActors.length, size);
+        chunk.coActors = Arrays.copyOf(chunk.coActors, capacity);
+        chunk.counts = Arrays.copyOf(chunk.counts, capacity);
+        chunk.maxRanks = Arrays.copyOf(chunk.maxRanks, capacity);
+      }
+      for (int i=0 ; i < degree ; i++) {
+        int coActorId = counters.touched[i];
+        chunk.coActors[chunk.numOfEdges] = coActorId;
+        chunk.counts[chunk.numOfEdges] = counters.counts[coActorId];
+        chunk.maxRanks[chunk.numOfEdges++] = ranks[coActorId];
+      }
+      chunk.degrees[id - first] = degree;
+      counters.reset();
+    }
+
+    return chunk;
+  }
+
+  // Patches the highest ranks of the edges between the actors of the movie,
+  // after its rank has changed from oldRank to the one it has now. The edges
+  // whose highest rank was the old one, if the new one is lower, get it
+  // recomputed from the other movies of their first actor. Hub movies don't
+  // need anything, since their ranks are checked at query time
+  public void updateRank(Movie movie, double oldRank) {
+    if (stale || movie.actors.size() > maxCastSize)
+      return;
+    double newRank = movie.rank;
+
+    if (castIds == null) {
+      int numOfIds = offsets.length - 1;
+      castIds = new EpochSet(numOfIds);
+      patchedIds = new EpochSet(numOfIds);
+      patchedRanks = new double[numOfIds];
+    }
+    castIds.clear();
+    for (Role r : movie.actors)
+      castIds.add(r.actor.id);
+
+    for (Role r : movie.actors) {
+      int id = r.actor.id;
+      patchedIds.clear();
+      boolean recompute = false;
+      for (int i=offsets[id] ; i < offsets[id+1] ; i++) {
+        int coActorId = coActors[i];
+        if (!castIds.contains(coActorId))
+          continue;
+        if (newRank > maxRanks[i])
+          maxRanks[i] = newRank;
+        else if (maxRanks[i] == oldRank && !(newRank >= oldRank)) {
+          patchedIds.add(coActorId);
+          patchedRanks[coActorId] = Double.NEGATIVE_INFINITY;
+          recompute = true;
+        }
+      }
+      if (!recompute)
+        continue;
+
+      for (Role r1 : r.actor.roles) {
+        Movie m = r1.movie;
+        if (m.actors.size() > maxCastSize)
+          continue;
+        for (Role r2 : m.actors) {
+          int coActorId = r2.actor.id;
+          if (patchedIds.contains(coActorId) && m.rank > patchedRanks[coActorId])
+            patchedRanks[coActorId] = m.rank;
+        }
+      }
+      for (int i=offsets[id] ; i < offsets[id+1] ; i++)
+        if (patchedIds.contains(coActors[i]))
+          maxRanks[i] = patchedRanks[coActors[i]];
+    }
+  }
+
+  // Any change to the roles invalidates the graph, which
+  // is then rebuilt from scratch the next time it's used
+  public void markStale() {
+    stale = true;
+  }
+
+  public boolean needsRebuild() {
+    return stale;
+  }
+
+  // Approximate amount of memory used by the graph, in bytes
+  public long memoryUsed() {
+    return 4L * (offsets.length + coActors.length + counts.length + hubOffsets.length + hubMovies.length) + 8L * maxRanks.length;
   }
 }
 
@@ -789,6 +3949,10 @@ class Movie {
   public int    year;
   public double rank;
 
+  // Set when the movie is deleted from the database. Its links in the lists of
+  // its actors and directors are then removed in bulk, see MoviesDB.deleteMovies()
+  public boolean deleted = false;
+
   public ArrayList<Genre> genres = new ArrayList<Genre>();
   public ArrayList<Role>  actors = new ArrayList<Role>();
   public ArrayList<Director> directors = new ArrayList<Director>();
@@ -800,6 +3964,16 @@ class Movie {
     this.rank = rank;
   }
 
+  // Ranks are summed in fixed point, in units of 2^-40, so that the sums are
+  // exact: adding and removing the same rank always cancel out, whatever the
+  // order of the updates. Ranks are at most 10, so there's room for more than
+  // 800,000 of them in a long
+  static final double RANK_SCALE = 0x1p40;
+
+  static long fixedPointRank(double rank) {
+    return Math.round(rank * RANK_SCALE);
+  }
+
   public void add(Genre genre) {
     genres.add(genre);
   }
@@ -834,10 +4008,26 @@ class Actor {
   public String firstName;
   public String lastName;
   public Gender gender;
-  public double avgMoviesRank = -1.0;
+
+  // Codes of the first and last name in the NameDictionary of the database
+  public int firstNameCode = -1;
+  public int lastNameCode = -1;
+
+  // Position of the actor in the NameGroup of its first name
+  int nameGroupIdx;
+
+  // Sum and number of the (positive) ranks of the movies the actor played in,
+  // counted once for every role, which are kept up to date as roles are added
+  // and removed, and as the ranks of the movies change. The sum is in fixed
+  // point, see Movie.fixedPointRank()
+  public long   sumOfMoviesRanks = 0;
+  public int    numOfRankedMovies = 0;
 
   public ArrayList<Role> roles = new ArrayList<Role>();
 
+  // Set while some of the roles of the actor are in deleted movies
+  boolean hasDeletedMovies = false;
+
   public Actor(int id, String firstName, String lastName, Gender gender) {
     this.id = id;
     this.firstName = firstName;
@@ -847,28 +4037,49 @@ class Actor {
 
   public void add(Role role) {
     roles.add(role);
+    addMovieRank(role.movie.rank, 1);
   }
 
+  // Takes time proportional to the number of roles of the actor. Removing the
+  // roles of many movies at once has to go through removeRolesInDeletedMovies()
   public void remove(Role role) {
-    roles.remove(role);
+    if (roles.remove(role))
+      addMovieRank(role.movie.rank, -1);
   }
 
-  public String fullName() {
-    return firstName + " " + lastName;
+  // Removes all the roles in deleted movies, with a single pass over the list
+  public void removeRolesInDeletedMovies() {
+    int count = 0;
+    for (int i=0 ; i < roles.size() ; i++) {
+      Role role = roles.get(i);
+      if (role.deleted)
+        addMovieRank(role.movie.rank, -1);
+      else
+        roles.set(count++, role);
+    }
+    roles.subList(count, roles.size()).clear();
+    hasDeletedMovies = false;
   }
 
-  public void calcAvgsMoviesRank() {
-    int count = 0;
-    double sum = 0.0;
-    for (Role r : roles) {
-      double rank = r.movie.rank;
-      if (rank > 0) {
-        count++;
-        sum += rank;
-      }
+  // Has to be called every time the rank of one of the actor's movies changes
+  public void updateMovieRank(double oldRank, double newRank) {
+    addMovieRank(oldRank, -1);
+    addMovieRank(newRank, 1);
+  }
+
+  void addMovieRank(double rank, int sign) {
+    if (rank > 0) {
+      numOfRankedMovies += sign;
+      sumOfMoviesRanks += sign * Movie.fixedPointRank(rank);
     }
-    if (count > 0)
-      avgMoviesRank = sum / count;
+  }
+
+  public double avgMoviesRank() {
+    return numOfRankedMovies > 0 ? sumOfMoviesRanks / Movie.RANK_SCALE / numOfRankedMovies : -1.0;
+  }
+
+  public String fullName() {
+    return firstName + " " + lastName;
   }
 }
 
@@ -878,6 +4089,9 @@ class Role {
   public Actor  actor;
   public String role;
 
+  // Set when the movie is deleted, see Movie.deleted
+  public boolean deleted = false;
+
   public Role(Movie movie, Actor actor, String role) {
     this.movie = movie;
     this.actor = actor;
@@ -892,10 +4106,20 @@ class Director {
   public int    id;
   public String firstName;
   public String lastName;
-  public double avgMoviesRank = -1.0;
+
+  // Same as in Actor
+  public int firstNameCode = -1;
+  public int lastNameCode = -1;
+
+  // Same as in Actor, counted once for every movie the director directed
+  public long   sumOfMoviesRanks = 0;
+  public int    numOfRankedMovies = 0;
 
   public ArrayList<Movie> movies = new ArrayList<Movie>();
 
+  // Set while some of the movies of the director have been deleted
+  boolean hasDeletedMovies = false;
+
   public Director(int id, String firstName, String lastName) {
     this.id = id;
     this.firstName = firstName;
@@ -905,62 +4129,286 @@ class Director {
   public void add(Movie movie) {
     movies.add(movie);
     movie.add(this);
+    addMovieRank(movie.rank, 1);
   }
 
+  // Linear in the number of movies, see Actor.remove()
   public void remove(Movie movie) {
-    movies.remove(movie);
+    if (movies.remove(movie))
+      addMovieRank(movie.rank, -1);
   }
 
-  public void calcAvgsMoviesRank() {
+  // Removes all the deleted movies, with a single pass over the list
+  public void removeDeletedMovies() {
     int count = 0;
-    double sum = 0.0;
-    for (Movie m : movies)
-      if (m.rank > 0) {
-        count++;
-        sum += m.rank;
+    for (int i=0 ; i < movies.size() ; i++) {
+      Movie movie = movies.get(i);
+      if (movie.deleted)
+        addMovieRank(movie.rank, -1);
+      else
+        movies.set(count++, movie);
+    }
+    movies.subList(count, movies.size()).clear();
+    hasDeletedMovies = false;
+  }
+
+  // Has to be called every time the rank of one of the director's movies changes
+  public void updateMovieRank(double oldRank, double newRank) {
+    addMovieRank(oldRank, -1);
+    addMovieRank(newRank, 1);
+  }
+
+  void addMovieRank(double rank, int sign) {
+    if (rank > 0) {
+      numOfRankedMovies += sign;
+      sumOfMoviesRanks += sign * Movie.fixedPointRank(rank);
+    }
+  }
+
+  public double avgMoviesRank() {
+    return numOfRankedMovies > 0 ? sumOfMoviesRanks / Movie.RANK_SCALE / numOfRankedMovies : -1.0;
+  }
+}
+
+
+// What the CSV loaders need to populate a database, either directly or through a MoviesDB.Builder
+interface MoviesDBLoader {
+  void addMovie(int id, String name, int year, double rank);
+  void addActor(int id, String firstName, String lastName, Actor.Gender gender);
+  void addDirector(int id, String firstName, String lastName);
+  void addMovieGenre(int movieId, Movie.Genre genre);
+  void addMovieDirector(int directorId, int movieId);
+  void addRole(int actorId, int movieId, String roleDescr);
+}
+
+
+class MoviesDB implements MoviesDBLoader {
+  public IntTable<Movie> movies = new IntTable<Movie>();
+  public IntTable<Actor> actors = new IntTable<Actor>();
+  public IntTable<Director> directors = new IntTable<Director>();
+
+  // All first and last names of actors and directors, and the actors indexed by
+  // the codes of their first and last name
+  public NameDictionary names = new NameDictionary();
+  public IntTable<Set<Actor>> actorsByFirstName = new IntTable<Set<Actor>>();
+  public IntTable<Set<Actor>> actorsByLastName = new IntTable<Set<Actor>>();
+
+  // Actors grouped by the code of their first name, with their last names
+  public IntTable<NameGroup> nameGroups = new IntTable<NameGroup>();
+
+  // Year and rank of all movies, also stored in columnar form, or null if the
+  // columnar layout is not in use. See useColumnarLayout()
+  public MovieColumns movieColumns;
+
+  // Index of all movies by rank, or null if not in use. See useRankIndex()
+  public RankIndex rankIndex;
+
+  // Links between movies and actors in compressed sparse row form, or null
+  // if not in use. See useRoleGraph() and roleGraph()
+  public RoleGraph roleGraph;
+
+  // Co-actors of all actors, or null if not in use. See useCoActorGraph() and coActorGraph()
+  public CoActorGraph coActorGraph;
+
+  // Cached results of idsOfMoviesWithActorsInCommon(), or null if not in use
+  public MovieResultsCache moviesWithActorsInCommonCache;
+
+  // Bulk loader that allocates the id tables of the database and the adjacency
+  // lists of all entities at their final size. The largest id of each entity
+  // and the number of rows of each file of links have to be known in advance,
+  // though they're only hints. Entities are stored directly in the pre-sized tables,
+  // while the rows of the files that link them are buffered, and only linked
+  // by build(), once the number of links of each entity has been counted.
+  // Since the counters are arrays indexed by id, ids cannot be negative
+  public static class Builder implements MoviesDBLoader {
+    MoviesDB moviesDB = new MoviesDB();
+
+    int maxMovieId = -1;
+    int maxActorId = -1;
+    int maxDirectorId = -1;
+
+    LinkChunk moviesDirectors;
+    LinkChunk moviesGenres;
+    LinkChunk roles;
+
+    // The first three arguments are one more than the largest id of each entity
+    public Builder(int movieIdsBound, int actorIdsBound, int directorIdsBound, int numOfMoviesDirectors, int numOfMoviesGenres, int numOfRoles) {
+      moviesDB.movies = new IntTable<Movie>(movieIdsBound);
+      moviesDB.actors = new IntTable<Actor>(actorIdsBound);
+      moviesDB.directors = new IntTable<Director>(directorIdsBound);
+      moviesDirectors = new LinkChunk(Math.max(numOfMoviesDirectors, 1));
+      moviesGenres = new LinkChunk(Math.max(numOfMoviesGenres, 1));
+      roles = new LinkChunk(Math.max(numOfRoles, 1));
+    }
+
+    public void addMovie(int id, String name, int year, double rank) {
+      if (id < 0)
+        throw new RuntimeException();
+      maxMovieId = Math.max(maxMovieId, id);
+      moviesDB.addMovie(id, name, year, rank);
+    }
+
+    public void addActor(int id, String firstName, String lastName, Actor.Gender gender) {
+      if (id < 0)
+        throw new RuntimeException();
+      maxActorId = Math.max(maxActorId, id);
+      moviesDB.addActor(id, firstName, lastName, gender);
+    }
+
+    public void addDirector(int id, String firstName, String lastName) {
+      if (id < 0)
+        throw new RuntimeException();
+      maxDirectorId = Math.max(maxDirectorId, id);
+      moviesDB.addDirector(id, firstName, lastName);
+    }
+
+    public void addMovieGenre(int movieId, Movie.Genre genre) {
+      moviesGenres.add(movieId, genre.ordinal(), null);
+    }
+
+    public void addMovieDirector(int directorId, int movieId) {
+      moviesDirectors.add(directorId, movieId, null);
+    }
+
+    public void addRole(int actorId, int movieId, String roleDescr) {
+      roles.add(actorId, movieId, roleDescr);
+    }
+
+    public MoviesDB build() {
+      int[] numOfGenres = new int[maxMovieId + 1];
+      int[] numOfActors = new int[maxMovieId + 1];
+      int[] numOfDirectors = new int[maxMovieId + 1];
+      int[] numOfRoles = new int[maxActorId + 1];
+      int[] numOfMovies = new int[maxDirectorId + 1];
+
+      for (int i=0 ; i < moviesGenres.size ; i++)
+        numOfGenres[moviesGenres.ids1[i]]++;
+
+      for (int i=0 ; i < moviesDirectors.size ; i++) {
+        numOfMovies[moviesDirectors.ids1[i]]++;
+        numOfDirectors[moviesDirectors.ids2[i]]++;
+      }
+
+      for (int i=0 ; i < roles.size ; i++) {
+        numOfRoles[roles.ids1[i]]++;
+        numOfActors[roles.ids2[i]]++;
+      }
+
+      for (int id=0 ; id < moviesDB.movies.capacity() ; id++) {
+        Movie m = moviesDB.movies.get(id);
+        if (m == null)
+          continue;
+        m.genres = new ArrayList<Movie.Genre>(numOfGenres[m.id]);
+        m.actors = new ArrayList<Role>(numOfActors[m.id]);
+        m.directors = new ArrayList<Director>(numOfDirectors[m.id]);
+      }
+
+      for (int id=0 ; id < moviesDB.actors.capacity() ; id++) {
+        Actor a = moviesDB.actors.get(id);
+        if (a == null)
+          continue;
+        a.roles = new ArrayList<Role>(numOfRoles[a.id]);
+      }
+
+      for (int id=0 ; id < moviesDB.directors.capacity() ; id++) {
+        Director d = moviesDB.directors.get(id);
+        if (d == null)
+          continue;
+        d.movies = new ArrayList<Movie>(numOfMovies[d.id]);
       }
-    if (count > 0)
-      avgMoviesRank = sum / count;
-  }
-}
 
+      Movie.Genre[] genres = Movie.Genre.values();
+      for (int i=0 ; i < moviesGenres.size ; i++)
+        moviesDB.addMovieGenre(moviesGenres.ids1[i], genres[moviesGenres.ids2[i]]);
 
-class MoviesDB {
-  public Map<Integer, Movie> movies = new HashMap<Integer, Movie>();
-  public Map<Integer, Actor> actors = new HashMap<Integer, Actor>();
-  public Map<Integer, Director> directors = new HashMap<Integer, Director>();
+      for (int i=0 ; i < moviesDirectors.size ; i++)
+        moviesDB.addMovieDirector(moviesDirectors.ids1[i], moviesDirectors.ids2[i]);
 
-  public Map<String, Set<Actor>> actorsByFirstName = new HashMap<String, Set<Actor>>();
-  public Map<String, Set<Actor>> actorsByLastName = new HashMap<String, Set<Actor>>();
+      for (int i=0 ; i < roles.size ; i++)
+        moviesDB.addRole(roles.ids1[i], roles.ids2[i], roles.strs[i]);
+
+      MoviesDB result = moviesDB;
+      moviesDB = null;
+      moviesDirectors = null;
+      moviesGenres = null;
+      roles = null;
+      return result;
+    }
+  }
 
 
   public void addMovie(int id, String name, int year, double rank) {
     movies.put(id, new Movie(id, name, year, rank));
+    if (movieColumns != null)
+      movieColumns.set(id, year, rank);
+    if (rankIndex != null)
+      rankIndex.add(id, year, rank);
+    if (roleGraph != null)
+      roleGraph.addMovie(id, movies.capacity());
+    if (coActorGraph != null)
+      coActorGraph.markStale();
   }
 
   public void addActor(int id, String firstName, String lastName, Actor.Gender gender) {
     Actor actor = new Actor(id, firstName, lastName, gender);
+    encodeNames(actor);
     actors.put(id, actor);
+    if (roleGraph != null)
+      roleGraph.ensureCapacity(0, actors.capacity());
+    if (coActorGraph != null)
+      coActorGraph.markStale();
+    addToIndex(actorsByFirstName, actor.firstNameCode, actor);
+    addToIndex(actorsByLastName, actor.lastNameCode, actor);
+    addToNameGroup(actor);
+  }
 
-    Set<Actor> sameNameActors = actorsByFirstName.get(firstName);
-    if (sameNameActors == null) {
-      sameNameActors = new HashSet<Actor>();
-      actorsByFirstName.put(firstName, sameNameActors);
+  public void addDirector(int id, String firstName, String lastName) {
+    Director director = new Director(id, firstName, lastName);
+    encodeNames(director);
+    directors.put(id, director);
+  }
+
+  // Sets the name codes of the given actor, and replaces its names with
+  // the copies stored in the dictionary, so that each is stored only once
+  void encodeNames(Actor actor) {
+    actor.firstNameCode = names.encode(actor.firstName);
+    actor.lastNameCode = names.encode(actor.lastName);
+    actor.firstName = names.name(actor.firstNameCode);
+    actor.lastName = names.name(actor.lastNameCode);
+  }
+
+  void encodeNames(Director director) {
+    director.firstNameCode = names.encode(director.firstName);
+    director.lastNameCode = names.encode(director.lastName);
+    director.firstName = names.name(director.firstNameCode);
+    director.lastName = names.name(director.lastNameCode);
+  }
+
+  void addToNameGroup(Actor actor) {
+    NameGroup group = nameGroups.get(actor.firstNameCode);
+    if (group == null) {
+      group = new NameGroup();
+      nameGroups.put(actor.firstNameCode, group);
     }
-    sameNameActors.add(actor);
+    group.add(actor);
+  }
+
+  void removeFromNameGroup(Actor actor) {
+    NameGroup group = nameGroups.get(actor.firstNameCode);
+    group.remove(actor);
+    if (group.isEmpty())
+      nameGroups.remove(actor.firstNameCode);
+  }
 
-    sameNameActors = actorsByLastName.get(lastName);
+  static void addToIndex(IntTable<Set<Actor>> index, int code, Actor actor) {
+    Set<Actor> sameNameActors = index.get(code);
     if (sameNameActors == null) {
       sameNameActors = new HashSet<Actor>();
-      actorsByLastName.put(lastName, sameNameActors);
+      index.put(code, sameNameActors);
     }
     sameNameActors.add(actor);
   }
 
-  public void addDirector(int id, String firstName, String lastName) {
-    directors.put(id, new Director(id, firstName, lastName));
-  }
-
   public void addMovieGenre(int movieId, Movie.Genre genre) {
     movies.get(movieId).add(genre);
   }
@@ -970,97 +4418,384 @@ class MoviesDB {
   }
 
   public void addRole(int actorId, int movieId, String roleDescr) {
-    new Role(movies.get(movieId), actors.get(actorId), roleDescr);
+    Role role = new Role(movies.get(movieId), actors.get(actorId), roleDescr);
+    if (roleGraph != null)
+      roleGraph.addRole(movieId, actorId, roleDescr);
+    if (moviesWithActorsInCommonCache != null)
+      invalidateCachedResults(role.actor);
+    if (coActorGraph != null)
+      coActorGraph.markStale();
   }
 
   //////////////////////////////////////////////////////////////////////////////
 
-  public void bumpUpRankOfMoviesMadeInOrBefore(int year, double factor) {
-    for (Movie m : movies.values())
-      if (m.year <= year)
-        m.rank += factor * (10.0 - m.rank);
+  // Switches to the columnar layout, copying the year and rank of all existing
+  // movies into movieColumns, which is then kept in sync by all updates. The
+  // Movie objects keep their own copy, which is what the queries that navigate
+  // from actors and directors to their movies read, while the queries that scan
+  // all movies only go through the columns
+  public void useColumnarLayout() {
+    movieColumns = new MovieColumns(movies.capacity());
+    for (int id=0 ; id < movies.capacity() ; id++) {
+      Movie m = movies.get(id);
+      if (m != null)
+        movieColumns.set(id, m.year, m.rank);
+    }
   }
 
-  //////////////////////////////////////////////////////////////////////////////
+  // Builds an index of all existing movies by rank, which is then kept up to
+  // date by all updates, and used to count the movies above a given rank, and
+  // to find those that have to be deleted by deleteMoviesWithRankBelow()
+  public void useRankIndex() {
+    rankIndex = new RankIndex();
+    rankIndex.rebuild(movies);
+    rankIndex.updateTime = 0;
+  }
+
+  // Builds the compressed sparse row copy of the links between movies and actors,
+  // which is then used by all the queries that navigate them
+  public void useRoleGraph() {
+    roleGraph = new RoleGraph(movies, actors);
+  }
+
+  // Returns the role graph, after merging all pending changes if necessary
+  RoleGraph roleGraph() {
+    if (roleGraph.needsRebuild())
+      roleGraph.rebuild(movies, actors);
+    return roleGraph;
+  }
+
+  // Builds the co-actors of all actors in parallel, using the given executor,
+  // leaving out the movies with more than maxCastSize actors, whose casts are
+  // instead expanded every time. It's used by the queries that only need to
+  // know which actors played together in movies above a given rank
+  public void useCoActorGraph(int maxCastSize, ExecutorService executor) {
+    coActorGraph = new CoActorGraph(maxCastSize, executor);
+    coActorGraph.rebuild(actors);
+  }
+
+  // Starts caching the results of idsOfMoviesWithActorsInCommon() for up
+  // to the given number of movies
+  public void useMoviesWithActorsInCommonCache(int capacity) {
+    moviesWithActorsInCommonCache = new MovieResultsCache(capacity);
+  }
+
+  // The movies that have actors in common with a given one are those of all the
+  // actors in its cast, so adding or removing a role of an actor changes the
+  // result for all the movies the actor played in, including the movie of the
+  // role itself, and for no other movie
+  void invalidateCachedResults(Actor actor) {
+    for (Role r : actor.roles)
+      moviesWithActorsInCommonCache.invalidate(r.movie.id);
+  }
+
+  // Returns the co-actor graph, rebuilding it first if it's out of date
+  CoActorGraph coActorGraph() {
+    if (coActorGraph.needsRebuild())
+      coActorGraph.rebuild(actors);
+    return coActorGraph;
+  }
 
-  public void calcActorsAvgsMoviesRanks() {
-    for (Actor a : actors.values())
-      a.calcAvgsMoviesRank();
+  // All changes to the rank of a movie have to go through here, so that
+  // the rank aggregates of its actors and directors are kept up to date
+  void setRank(Movie movie, double rank) {
+    double oldRank = movie.rank;
+    for (Role r : movie.actors)
+      r.actor.updateMovieRank(oldRank, rank);
+    for (Director d : movie.directors)
+      d.updateMovieRank(oldRank, rank);
+
+    if (rankIndex != null)
+      rankIndex.update(movie.id, movie.rank, rank);
+    movie.rank = rank;
+    if (movieColumns != null)
+      movieColumns.ranks[movie.id] = rank;
+    if (coActorGraph != null)
+      coActorGraph.updateRank(movie, oldRank);
   }
 
-  public void calcDirectorsAvgsMoviesRanks() {
-    for (Director d : directors.values())
-      d.calcAvgsMoviesRank();
+  //////////////////////////////////////////////////////////////////////////////
+
+  public void bumpUpRankOfMoviesMadeInOrBefore(int year, double factor) {
+    // Since this changes the rank of most movies, it's a lot faster to rebuild
+    // the co-actor graph than to update it one movie at a time. The rank index
+    // is updated as usual, which only takes constant time per movie
+    CoActorGraph coActorGraph = this.coActorGraph;
+    this.coActorGraph = null;
+
+    for (int id=0 ; id < movies.capacity() ; id++) {
+      Movie m = movies.get(id);
+      if (m == null)
+        continue;
+      if (m.year <= year)
+        setRank(m, m.rank + factor * (10.0 - m.rank));
+    }
+
+    if (coActorGraph != null) {
+      coActorGraph.markStale();
+      this.coActorGraph = coActorGraph;
+    }
   }
 
   //////////////////////////////////////////////////////////////////////////////
 
+  // The average ranks of the actors and directors of the movie are updated by setRank()
   public void bumpUpRankOfMovieAndAllItsActorsAndDirectors(Movie movie, double factor) {
     double delta = factor * (10.0 - movie.rank);
-    movie.rank += delta;
+    setRank(movie, movie.rank + delta);
+  }
 
-    for (Role r : movie.actors) {
-      Actor actor = r.actor;
-      if (actor.avgMoviesRank > 0.0) {
-        int count = actor.roles.size();
-        actor.avgMoviesRank += delta / count;
-      }
+  public void deleteMoviesWithRankBelow(double rank) {
+    ArrayList<Movie> moviesToRemove = new ArrayList<Movie>();
+    if (rankIndex != null) {
+      for (int id : rankIndex.removeBelow(rank))
+        moviesToRemove.add(movies.get(id));
     }
+    else
+      for (int id=0 ; id < movies.capacity() ; id++) {
+        Movie m = movies.get(id);
+        if (m == null)
+          continue;
+        if (m.rank < rank)
+          moviesToRemove.add(m);
+      }
+    deleteMovies(moviesToRemove);
+  }
 
-    for (Director d : movie.directors)
-      if (d.avgMoviesRank > 0.0) {
-        int count = d.movies.size();
-        d.avgMoviesRank += delta / count;
+  // Deleted movies are first marked as such, and then the lists of all their
+  // actors and directors are compacted, each of them only once, so the time
+  // it takes is linear in the total length of those lists, instead of growing
+  // with the product of the number of deleted movies and the length of the lists
+  void deleteMovies(List<Movie> moviesToRemove) {
+    List<Actor> actorsToCompact = new ArrayList<Actor>();
+    List<Director> directorsToCompact = new ArrayList<Director>();
+    markDeleted(moviesToRemove, actorsToCompact, directorsToCompact);
+    removeMovies(moviesToRemove);
+    for (Actor a : actorsToCompact)
+      a.removeRolesInDeletedMovies();
+    for (Director d : directorsToCompact)
+      d.removeDeletedMovies();
+  }
+
+  // Marks the given movies and their roles as deleted, and adds to the given lists
+  // all the actors and directors linked to any of them, each of them only once
+  void markDeleted(List<Movie> moviesToRemove, List<Actor> actorsToCompact, List<Director> directorsToCompact) {
+    for (Movie m : moviesToRemove) {
+      m.deleted = true;
+      for (Role r : m.actors) {
+        r.deleted = true;
+        // The first time an actor is found, all its roles are still there, so
+        // invalidating the results of all its movies then covers this delete
+        if (!r.actor.hasDeletedMovies) {
+          r.actor.hasDeletedMovies = true;
+          actorsToCompact.add(r.actor);
+          if (moviesWithActorsInCommonCache != null)
+            invalidateCachedResults(r.actor);
+        }
       }
+      for (Director d : m.directors)
+        if (!d.hasDeletedMovies) {
+          d.hasDeletedMovies = true;
+          directorsToCompact.add(d);
+        }
+    }
   }
 
-  public void deleteMoviesWithRankBelow(double rank) {
-    ArrayList<Movie> moviesToRemove = new ArrayList<Movie>();
-    for (Movie m : movies.values())
-      if (m.rank < rank)
-        moviesToRemove.add(m);
+  // Removes the given movies from the id table and from all the structures
+  // that store a copy of their data. It doesn't touch their links
+  void removeMovies(List<Movie> moviesToRemove) {
     for (Movie m : moviesToRemove) {
       Movie remMovie = movies.remove(m.id);
       if (remMovie != m)
         throw new RuntimeException();
-      for (Role r : m.actors)
-        r.actor.remove(r);
-      for (Director d : m.directors)
-        d.remove(m);
+      if (movieColumns != null)
+        movieColumns.clear(m.id);
+      // Actors are deleted only when they have no roles left, so the
+      // graph doesn't need to be told when that happens
+      if (roleGraph != null)
+        roleGraph.deleteMovie(m.id);
+    }
+    if (coActorGraph != null)
+      coActorGraph.markStale();
+  }
+
+  // Outcome of a cascading delete: the number of entities of each type that
+  // were deleted, and the time taken by each phase, in milliseconds
+  public static class DeleteReport {
+    public int  numOfMovies;
+    public int  numOfActors;
+    public int  numOfDirectors;
+    public long markTime;
+    public long propagateTime;
+    public long compactTime;
+  }
+
+  // Has the same effect as deleteMoviesWithRankBelow(), deleteActorsWithNoRoles()
+  // and deleteDirectorsWithNoMovies() called in sequence, see deleteMoviesCascading().
+  // The movies to delete are found through the rank index, if there's one
+  public DeleteReport deleteMoviesWithRankBelowCascading(double rank, ExecutorService executor) {
+    if (rankIndex == null)
+      return deleteMoviesCascading(m -> m.rank < rank, executor);
+
+    long msecs1 = System.currentTimeMillis();
+    List<Movie> moviesToRemove = new ArrayList<Movie>();
+    for (int id : rankIndex.removeBelow(rank))
+      moviesToRemove.add(movies.get(id));
+    return deleteMoviesCascading(moviesToRemove, msecs1, executor);
+  }
+
+  // Deletes all the movies that satisfy the given condition, and then all the
+  // actors and directors that are left with no movies. It's done in three
+  // phases: first all the movies to delete are marked as such, then the lists
+  // of all actors and directors are compacted, which also finds the ones that
+  // are left with no links, and finally all the entities to delete are removed
+  // from the id tables and the name indexes. The last two phases are split into
+  // independent tasks, which are run in parallel using the given executor
+  public DeleteReport deleteMoviesCascading(Predicate<Movie> condition, ExecutorService executor) {
+    long msecs1 = System.currentTimeMillis();
+    List<Movie> moviesToRemove = new ArrayList<Movie>();
+    for (int id=0 ; id < movies.capacity() ; id++) {
+      Movie m = movies.get(id);
+      if (m != null && condition.test(m))
+        moviesToRemove.add(m);
+    }
+    if (rankIndex != null)
+      rankIndex.removeAll(moviesToRemove);
+    return deleteMoviesCascading(moviesToRemove, msecs1, executor);
+  }
+
+  // The movies to delete have already been removed from the rank index
+  DeleteReport deleteMoviesCascading(List<Movie> moviesToRemove, long msecs1, ExecutorService executor) {
+    DeleteReport report = new DeleteReport();
+
+    markDeleted(moviesToRemove, new ArrayList<Actor>(), new ArrayList<Director>());
+
+    long msecs2 = System.currentTimeMillis();
+
+    // The actors are split into ranges of ids, each of which is a separate task
+    int numOfTasks = 4 * Runtime.getRuntime().availableProcessors();
+    int rangeSize = (actors.capacity() + numOfTasks - 1) / numOfTasks;
+    List<CompletableFuture<List<Actor>>> actorsTasks = new ArrayList<CompletableFuture<List<Actor>>>();
+    for (int i=0 ; i < numOfTasks ; i++) {
+      int first = i * rangeSize;
+      int last = Math.min(first + rangeSize, actors.capacity());
+      actorsTasks.add(CompletableFuture.supplyAsync(() -> compactActors(first, last), executor));
+    }
+    CompletableFuture<List<Director>> directorsTask = CompletableFuture.supplyAsync(this::compactDirectors, executor);
+
+    List<Actor> actorsToRemove = new ArrayList<Actor>();
+    for (CompletableFuture<List<Actor>> task : actorsTasks)
+      actorsToRemove.addAll(task.join());
+    List<Director> directorsToRemove = directorsTask.join();
+
+    long msecs3 = System.currentTimeMillis();
+
+    CompletableFuture.allOf(
+      CompletableFuture.runAsync(() -> removeMovies(moviesToRemove), executor),
+      CompletableFuture.runAsync(() -> removeActors(actorsToRemove), executor),
+      CompletableFuture.runAsync(() -> removeDirectors(directorsToRemove), executor),
+      CompletableFuture.runAsync(() -> removeFromIndex(actorsByFirstName, actorsToRemove, true), executor),
+      CompletableFuture.runAsync(() -> removeFromIndex(actorsByLastName, actorsToRemove, false), executor),
+      CompletableFuture.runAsync(() -> actorsToRemove.forEach(this::removeFromNameGroup), executor)
+    ).join();
+
+    long msecs4 = System.currentTimeMillis();
+
+    report.numOfMovies = moviesToRemove.size();
+    report.numOfActors = actorsToRemove.size();
+    report.numOfDirectors = directorsToRemove.size();
+    report.markTime = msecs2 - msecs1;
+    report.propagateTime = msecs3 - msecs2;
+    report.compactTime = msecs4 - msecs3;
+    return report;
+  }
+
+  // Compacts the lists of roles of the actors in the given range of ids,
+  // and returns those that are left with no roles
+  List<Actor> compactActors(int first, int last) {
+    List<Actor> actorsToRemove = new ArrayList<Actor>();
+    for (int id=first ; id < last ; id++) {
+      Actor a = actors.get(id);
+      if (a == null)
+        continue;
+      if (a.hasDeletedMovies)
+        a.removeRolesInDeletedMovies();
+      if (a.roles.isEmpty())
+        actorsToRemove.add(a);
+    }
+    return actorsToRemove;
+  }
+
+  // Same as compactActors(), for all directors
+  List<Director> compactDirectors() {
+    List<Director> directorsToRemove = new ArrayList<Director>();
+    for (int id=0 ; id < directors.capacity() ; id++) {
+      Director d = directors.get(id);
+      if (d == null)
+        continue;
+      if (d.hasDeletedMovies)
+        d.removeDeletedMovies();
+      if (d.movies.isEmpty())
+        directorsToRemove.add(d);
     }
+    return directorsToRemove;
+  }
+
+  void removeActors(List<Actor> actorsToRemove) {
+    for (Actor a : actorsToRemove)
+      if (actors.remove(a.id) != a)
+        throw new RuntimeException();
+  }
+
+  void removeDirectors(List<Director> directorsToRemove) {
+    for (Director d : directorsToRemove)
+      if (directors.remove(d.id) != d)
+        throw new RuntimeException();
+  }
+
+  static void removeFromIndex(IntTable<Set<Actor>> index, List<Actor> actorsToRemove, boolean byFirstName) {
+    for (Actor a : actorsToRemove)
+      removeFromIndex(index, byFirstName ? a.firstNameCode : a.lastNameCode, a);
+  }
+
+  static void removeFromIndex(IntTable<Set<Actor>> index, int code, Actor actor) {
+    Set<Actor> as = index.get(code);
+    boolean found = as.remove(actor);
+    if (!found)
+      throw new RuntimeException();
+    if (as.isEmpty())
+      index.remove(code);
   }
 
   public void deleteActorsWithNoRoles() {
     ArrayList<Actor> actorsToRemove = new ArrayList<Actor>();
-    for (Actor a : actors.values())
+    for (int id=0 ; id < actors.capacity() ; id++) {
+      Actor a = actors.get(id);
+      if (a == null)
+        continue;
       if (a.roles.isEmpty())
         actorsToRemove.add(a);
+    }
     for (Actor a : actorsToRemove) {
       Actor remActor = actors.remove(a.id);
       if (remActor != a)
         throw new RuntimeException();
 
-      Set<Actor> as = actorsByFirstName.get(a.firstName);
-      boolean found = as.remove(a);
-      if (!found)
-        throw new RuntimeException();
-      if (as.isEmpty())
-        actorsByFirstName.remove(a.firstName);
-
-      as = actorsByLastName.get(a.lastName);
-      found = as.remove(a);
-      if (!found)
-        throw new RuntimeException();
-      if (as.isEmpty())
-        actorsByLastName.remove(a.lastName);
+      removeFromIndex(actorsByFirstName, a.firstNameCode, a);
+      removeFromIndex(actorsByLastName, a.lastNameCode, a);
+      removeFromNameGroup(a);
     }
   }
 
   public void deleteDirectorsWithNoMovies() {
     ArrayList<Director> directorsToRemove = new ArrayList<Director>();
-    for (Director d : directors.values())
+    for (int id=0 ; id < directors.capacity() ; id++) {
+      Director d = directors.get(id);
+      if (d == null)
+        continue;
       if (d.movies.isEmpty())
         directorsToRemove.add(d);
+    }
     for (Director d : directorsToRemove) {
       Director remDirector = directors.remove(d.id);
       if (remDirector != d)
@@ -1072,26 +4807,88 @@ class MoviesDB {
 
   public int numOfMoviesWithRankAbove(double minRank) {
     int count = 0;
-    for (Movie movie : movies.values())
+    if (rankIndex != null)
+      return rankIndex.countAbove(minRank);
+    if (movieColumns != null)
+      return movieColumns.countRankAbove(minRank);
+    for (int id=0 ; id < movies.capacity() ; id++) {
+      Movie movie = movies.get(id);
+      if (movie == null)
+        continue;
       if (movie.rank >= minRank)
         count++;
+    }
     return count;
   }
 
+  // Answers numOfMoviesWithRankAbove() for all the given thresholds,
+  // with a single scan if the columnar layout is in use
+  public int[] numOfMoviesWithRankAbove(double[] minRanks) {
+    if (movieColumns != null && rankIndex == null)
+      return movieColumns.countRankAbove(minRanks);
+    int[] counts = new int[minRanks.length];
+    for (int i=0 ; i < minRanks.length ; i++)
+      counts[i] = numOfMoviesWithRankAbove(minRanks[i]);
+    return counts;
+  }
+
   public int numOfActorsWhoPlayedInAMovieWithRankAbove(double minRank) {
     int count = 0;
-    for (Actor actor : actors.values())
+    if (roleGraph != null) {
+      RoleGraph graph = roleGraph();
+      for (int id=0 ; id < actors.capacity() ; id++)
+        for (int i=graph.actorOffsets[id] ; i < graph.actorEnds[id] ; i++) {
+          int movieId = graph.actorMovies[i];
+          if (!graph.deletedMovies[movieId] && movies.get(movieId).rank >= minRank) {
+            count++;
+            break;
+          }
+        }
+      return count;
+    }
+    for (int id=0 ; id < actors.capacity() ; id++) {
+      Actor actor = actors.get(id);
+      if (actor == null)
+        continue;
       for (Role role : actor.roles)
         if (role.movie.rank >= minRank) {
           count++;
           break;
         }
+    }
     return count;
   }
 
   // public Actor[] coActorsInMoviesWithRankAbove(Actor actor, double minRank) {
   public Set<Actor> coActorsInMoviesWithRankAbove(Actor actor, double minRank) {
     HashSet<Actor> coActors = new HashSet<Actor>();
+    if (coActorGraph != null) {
+      CoActorGraph graph = coActorGraph();
+      for (int i=graph.offsets[actor.id] ; i < graph.offsets[actor.id+1] ; i++)
+        if (graph.maxRanks[i] >= minRank)
+          coActors.add(actors.get(graph.coActors[i]));
+      for (int i=graph.hubOffsets[actor.id] ; i < graph.hubOffsets[actor.id+1] ; i++) {
+        Movie m = movies.get(graph.hubMovies[i]);
+        if (m.rank >= minRank)
+          for (Role r : m.actors)
+            if (r.actor != actor)
+              coActors.add(r.actor);
+      }
+      return coActors;
+    }
+    if (roleGraph != null) {
+      RoleGraph graph = roleGraph();
+      for (int i=graph.actorOffsets[actor.id] ; i < graph.actorEnds[actor.id] ; i++) {
+        int movieId = graph.actorMovies[i];
+        if (!graph.deletedMovies[movieId] && movies.get(movieId).rank >= minRank)
+          for (int j=graph.movieOffsets[movieId] ; j < graph.movieEnds[movieId] ; j++) {
+            int actorId = graph.movieActors[j];
+            if (actorId != actor.id)
+              coActors.add(actors.get(actorId));
+          }
+      }
+      return coActors;
+    }
     // TreeSet<Actor> coActors = new TreeSet<Actor>((a1, a2) -> a1.id - a2.id);
     for (Role r1 : actor.roles)
       if (r1.movie.rank >= minRank)
@@ -1102,62 +4899,301 @@ class MoviesDB {
     return coActors;
   }
 
+  // Scratch set of actor ids used by the following method, one for each thread
+  ThreadLocal<EpochSet> visitedActors = ThreadLocal.withInitial(() -> new EpochSet(actors.capacity()));
+
+  // Same as coActorsInMoviesWithRankAbove(), but the ids of the co-actors are
+  // written to the given buffer, and their number is returned. The buffer has
+  // to be large enough to store all of them: actors.capacity() is always enough.
+  // Duplicates are removed using a scratch set that is reused across calls, so
+  // nothing is allocated, and it can be called concurrently from multiple
+  // threads as long as the database is not modified in the meantime
+  public int coActorsInMoviesWithRankAbove(Actor actor, double minRank, int[] buffer) {
+    EpochSet visited = visitedActors.get();
+    visited.clear();
+    visited.add(actor.id);
+    int count = 0;
+    if (coActorGraph != null) {
+      CoActorGraph graph = coActorGraph();
+      for (int i=graph.offsets[actor.id] ; i < graph.offsets[actor.id+1] ; i++)
+        if (graph.maxRanks[i] >= minRank && visited.add(graph.coActors[i]))
+          buffer[count++] = graph.coActors[i];
+      for (int i=graph.hubOffsets[actor.id] ; i < graph.hubOffsets[actor.id+1] ; i++) {
+        Movie m = movies.get(graph.hubMovies[i]);
+        if (m.rank >= minRank)
+          for (Role r : m.actors)
+            if (visited.add(r.actor.id))
+              buffer[count++] = r.actor.id;
+      }
+      return count;
+    }
+    if (roleGraph != null) {
+      RoleGraph graph = roleGraph();
+      for (int i=graph.actorOffsets[actor.id] ; i < graph.actorEnds[actor.id] ; i++) {
+        int movieId = graph.actorMovies[i];
+        if (!graph.deletedMovies[movieId] && movies.get(movieId).rank >= minRank)
+          for (int j=graph.movieOffsets[movieId] ; j < graph.movieEnds[movieId] ; j++) {
+            int actorId = graph.movieActors[j];
+            if (visited.add(actorId))
+              buffer[count++] = actorId;
+          }
+      }
+      return count;
+    }
+    for (Role r1 : actor.roles)
+      if (r1.movie.rank >= minRank)
+        for (Role r2 : r1.movie.actors)
+          if (visited.add(r2.actor.id))
+            buffer[count++] = r2.actor.id;
+    return count;
+  }
+
+  // Returns the number of co-actors in movies with rank above the given one of
+  // every actor, indexed by id. The actors are split into ranges of ids, which
+  // are processed in parallel using the given executor, each with its own buffer
+  public int[] numsOfCoActorsInMoviesWithRankAbove(double minRank, ExecutorService executor) {
+    // The graphs have to be brought up to date before the tasks start, since
+    // it's not safe to rebuild them while other threads are reading them
+    if (roleGraph != null)
+      roleGraph();
+    if (coActorGraph != null)
+      coActorGraph();
+
+    int numOfIds = actors.capacity();
+    int[] counts = new int[numOfIds];
+    int numOfTasks = 4 * Runtime.getRuntime().availableProcessors();
+    int rangeSize = (numOfIds + numOfTasks - 1) / numOfTasks;
+    List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+    for (int i=0 ; i < numOfTasks ; i++) {
+      int first = i * rangeSize;
+      int last = Math.min(first + rangeSize, numOfIds);
+      tasks.add(CompletableFuture.runAsync(() -> {
+        int[] buffer = new int[numOfIds];
+        for (int id=first ; id < last ; id++) {
+          Actor a = actors.get(id);
+          if (a != null)
+            counts[id] = coActorsInMoviesWithRankAbove(a, minRank, buffer);
+        }
+      }, executor));
+    }
+    CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+    return counts;
+  }
+
   public Map<Actor, Integer> coActorsWithCountInMoviesWithRankAbove(Actor actor, double minRank) {
     HashMap<Actor, Integer> coActors = new HashMap<Actor, Integer>();
+    if (roleGraph != null) {
+      RoleGraph graph = roleGraph();
+      for (int i=graph.actorOffsets[actor.id] ; i < graph.actorEnds[actor.id] ; i++) {
+        int movieId = graph.actorMovies[i];
+        if (!graph.deletedMovies[movieId] && movies.get(movieId).rank >= minRank)
+          for (int j=graph.movieOffsets[movieId] ; j < graph.movieEnds[movieId] ; j++) {
+            Actor coActor = actors.get(graph.movieActors[j]);
+            if (coActor != actor)
+              coActors.put(coActor, coActors.getOrDefault(coActor, 0) + 1);
+          }
+      }
+      return coActors;
+    }
     // TreeMap<Actor, Integer> coActors = new TreeMap<Actor, Integer>((a1, a2) -> a1.id - a2.id);
     for (Role r1 : actor.roles)
       if (r1.movie.rank >= minRank)
         for (Role r2 : r1.movie.actors)
           if (r2.actor != actor)
-            coActors.put(r2.actor, coActors.getOrDefault(r2.actor, 0));
+            coActors.put(r2.actor, coActors.getOrDefault(r2.actor, 0) + 1);
     return coActors;
   }
 
+  // Co-actors of an actor and the number of movies they played in together,
+  // stored in two parallel arrays
+  public static class CoActorCounts {
+    public final int[] actorIds;
+    public final int[] counts;
+
+    public CoActorCounts(int[] actorIds, int[] counts) {
+      this.actorIds = actorIds;
+      this.counts = counts;
+    }
+
+    public int size() {
+      return actorIds.length;
+    }
+  }
+
+  // Scratch counters used by the following methods, one for each thread
+  ThreadLocal<DenseCounters> coActorsCounters = ThreadLocal.withInitial(() -> new DenseCounters(actors.capacity()));
+
+  // Same as coActorsWithCountInMoviesWithRankAbove(), but the counts are kept in
+  // an array of counters that is reused across calls, and the result is returned
+  // as two arrays, with the co-actors in the order they were first found
+  public CoActorCounts countCoActorsInMoviesWithRankAbove(Actor actor, double minRank) {
+    DenseCounters counters = countCoActors(actor, minRank);
+    int[] actorIds = Arrays.copyOf(counters.touched, counters.numOfTouched);
+    int[] counts = new int[actorIds.length];
+    for (int i=0 ; i < actorIds.length ; i++)
+      counts[i] = counters.counts[actorIds[i]];
+    counters.reset();
+    return new CoActorCounts(actorIds, counts);
+  }
+
+  // Returns the (at most) k co-actors who played in the largest number of movies
+  // with rank above the given one with the given actor, sorted by decreasing
+  // count, and by id when the counts are the same
+  public CoActorCounts topCoActorsInMoviesWithRankAbove(Actor actor, double minRank, int k) {
+    DenseCounters counters = countCoActors(actor, minRank);
+    // Count and id are packed in a single long, so that sorting them in
+    // ascending order sorts them by decreasing count and increasing id
+    long[] keys = new long[counters.numOfTouched];
+    for (int i=0 ; i < keys.length ; i++) {
+      int id = counters.touched[i];
+      keys[i] = ((long) (Integer.MAX_VALUE - counters.counts[id]) << 32) | id;
+    }
+    counters.reset();
+    Arrays.sort(keys);
+    int size = Math.min(k, keys.length);
+    int[] actorIds = new int[size];
+    int[] counts = new int[size];
+    for (int i=0 ; i < size ; i++) {
+      actorIds[i] = (int) keys[i];
+      counts[i] = Integer.MAX_VALUE - (int) (keys[i] >>> 32);
+    }
+    return new CoActorCounts(actorIds, counts);
+  }
+
+  // Counts the co-appearances of the given actor with all other actors
+  // using the counters of the current thread, which have to be reset
+  // by the caller after the counts have been read
+  DenseCounters countCoActors(Actor actor, double minRank) {
+    DenseCounters counters = coActorsCounters.get();
+    if (roleGraph != null) {
+      RoleGraph graph = roleGraph();
+      for (int i=graph.actorOffsets[actor.id] ; i < graph.actorEnds[actor.id] ; i++) {
+        int movieId = graph.actorMovies[i];
+        if (!graph.deletedMovies[movieId] && movies.get(movieId).rank >= minRank)
+          for (int j=graph.movieOffsets[movieId] ; j < graph.movieEnds[movieId] ; j++) {
+            int actorId = graph.movieActors[j];
+            if (actorId != actor.id)
+              counters.increment(actorId);
+          }
+      }
+      return counters;
+    }
+    for (Role r1 : actor.roles)
+      if (r1.movie.rank >= minRank)
+        for (Role r2 : r1.movie.actors)
+          if (r2.actor != actor)
+            counters.increment(r2.actor.id);
+    return counters;
+  }
+
+  // Scratch set of movie ids used by the following method, one for each thread
+  ThreadLocal<EpochSet> visitedMovies = ThreadLocal.withInitial(() -> new EpochSet(movies.capacity()));
+
+  // Same as moviesWithActorsInCommon(), but it returns the ids of the movies,
+  // in the order they are first found, and the result is cached if the cache
+  // is in use. The returned array may be shared, and must not be modified
+  public int[] idsOfMoviesWithActorsInCommon(Movie movie) {
+    MovieResultsCache cache = moviesWithActorsInCommonCache;
+    if (cache != null) {
+      int[] ids = cache.get(movie.id);
+      if (ids != null)
+        return ids;
+    }
+
+    EpochSet visited = visitedMovies.get();
+    visited.clear();
+    visited.add(movie.id);
+    int[] ids = new int[16];
+    int count = 0;
+    for (Role r1 : movie.actors)
+      for (Role r2 : r1.actor.roles)
+        if (visited.add(r2.movie.id)) {
+          if (count == ids.length)
+            ids = Arrays.copyOf(ids, 2 * ids.length);
+          ids[count++] = r2.movie.id;
+        }
+    ids = Arrays.copyOf(ids, count);
+
+    if (cache != null)
+      cache.put(movie.id, ids);
+    return ids;
+  }
+
+  public Set<Movie> moviesWithActorsInCommon(Movie movie) {
+    if (roleGraph == null)
+      return movie.moviesWithActorsInCommon();
+    RoleGraph graph = roleGraph();
+    Set<Movie> result = new HashSet<Movie>();
+    for (int i=graph.movieOffsets[movie.id] ; i < graph.movieEnds[movie.id] ; i++) {
+      int actorId = graph.movieActors[i];
+      for (int j=graph.actorOffsets[actorId] ; j < graph.actorEnds[actorId] ; j++) {
+        int movieId = graph.actorMovies[j];
+        if (movieId != movie.id && !graph.deletedMovies[movieId])
+          result.add(movies.get(movieId));
+      }
+    }
+    return result;
+  }
+
+  // The following two methods return a read-only view of the name group of
+  // the first name of the actor, that throws a ConcurrentModificationException
+  // after the next change to the actors with that first name, so callers that
+  // keep it have to copy it. The actor itself is left out in constant time
+
   public List<String> lastNamesOfActorsWithSameFirstNameAs(Actor actor) {
-    Set<Actor> actors = actorsByFirstName.get(actor.firstName);
-    List<String> lastNames = new ArrayList<String>();
-    if (actors != null)
-      for (Actor a : actors)
-        if (a != actor)
-          lastNames.add(a.lastName);
-    return lastNames;
+    NameGroup group = nameGroups.get(actor.firstNameCode);
+    if (group == null)
+      return new ArrayList<String>();
+    return group.lastNamesOfOthers(actor, names);
   }
 
-  public Set<String> uniqueLastNamesOfActorsWithSameFirstNameAs(Actor actor) {
-    Set<Actor> actors = actorsByFirstName.get(actor.firstName);
-    Set<String> lastNames = new HashSet<String>();
-    if (actors != null)
-      for (Actor a : actors)
-        if (a != actor)
-          lastNames.add(a.lastName);
-    return lastNames;
+  public List<String> uniqueLastNamesOfActorsWithSameFirstNameAs(Actor actor) {
+    NameGroup group = nameGroups.get(actor.firstNameCode);
+    if (group == null)
+      return new ArrayList<String>();
+    return group.uniqueLastNamesOfOthers(actor, names);
   }
 
   public boolean isAlsoActor(Director director) {
-    Set<Actor> actors = actorsByLastName.get(director.lastName);
+    Set<Actor> actors = actorsByLastName.get(director.lastNameCode);
     if (actors != null)
       for (Actor a : actors)
-        if (a.firstName.equals(director.firstName))
+        if (a.firstNameCode == director.firstNameCode)
           return true;
     return false;
   }
 
   public int[] moviesAgeHistogram(int startYear, double minRank) {
     int[] histogram = new int[0];
-    for (Movie m : movies.values())
+    if (rankIndex != null)
+      return rankIndex.ageHistogram(startYear, minRank);
+    if (movieColumns != null)
+      return movieColumns.ageHistogram(startYear, minRank);
+    for (int id=0 ; id < movies.capacity() ; id++) {
+      Movie m = movies.get(id);
+      if (m == null)
+        continue;
       if (m.rank >= minRank && m.year >= startYear) {
         int idx = m.year - startYear;
         if (idx >= histogram.length)
           histogram = Arrays.copyOf(histogram, idx+1);
         histogram[idx]++;
       }
+    }
     return histogram;
   }
 
   public double avgAgeOfMoviesWithRankAbove(int currYear, double minRank) {
     long totalAge = 0;
     int count = 0;
-    for (Movie m : movies.values()) {
+    if (rankIndex != null || movieColumns != null) {
+      long[] countAndSum = rankIndex != null ? rankIndex.countAndSumYearsAbove(minRank) : movieColumns.countAndSumYearsRankAbove(minRank);
+      return (countAndSum[0] * currYear - countAndSum[1]) / (double) countAndSum[0];
+    }
+    for (int id=0 ; id < movies.capacity() ; id++) {
+      Movie m = movies.get(id);
+      if (m == null)
+        continue;
       if (m.rank >= minRank) {
         int age = m.age(currYear);
         totalAge += age;
@@ -1169,10 +5205,427 @@ class MoviesDB {
 
   public long sumOfAllMoviesAges(int currYear) {
     long totalAge = 0;
-    for (Movie m : movies.values()) {
+    if (movieColumns != null)
+      return movies.size() * (long) currYear - movieColumns.sumYears();
+    for (int id=0 ; id < movies.capacity() ; id++) {
+      Movie m = movies.get(id);
+      if (m == null)
+        continue;
       int age = m.age(currYear);
       totalAge += age;
     }
     return totalAge;
   }
+
+  //////////////////////////////////////////////////////////////////////////////
+
+  // Binary snapshot of the database. Every entity is written as a set of columns,
+  // and entities refer to each other, and to strings (which are stored only once,
+  // in a table of their own), by their position in the snapshot instead of their
+  // id, so that they can be restored with bulk reads and without any lookup.
+  // Links are written from both sides, to preserve the order of all adjacency
+  // lists, and with it the results of any computation that depends on it
+
+  static final int SNAPSHOT_MAGIC   = 0x494D4442;
+  static final int SNAPSHOT_VERSION = 3;
+
+  public void save(DataOutputStream out) throws IOException {
+    Movie[] movies = values(this.movies, new Movie[this.movies.size()]);
+    Actor[] actors = values(this.actors, new Actor[this.actors.size()]);
+    Director[] directors = values(this.directors, new Director[this.directors.size()]);
+
+    Map<Object, Integer> positions = new IdentityHashMap<Object, Integer>();
+    for (int i=0 ; i < movies.length ; i++)
+      positions.put(movies[i], i);
+    for (int i=0 ; i < actors.length ; i++)
+      positions.put(actors[i], i);
+    for (int i=0 ; i < directors.length ; i++)
+      positions.put(directors[i], i);
+
+    Map<String, Integer> stringsIdxs = new HashMap<String, Integer>();
+    List<String> strings = new ArrayList<String>();
+
+    int[] movieIds = new int[movies.length];
+    int[] movieNames = new int[movies.length];
+    int[] movieYears = new int[movies.length];
+    double[] movieRanks = new double[movies.length];
+    int[] numOfGenres = new int[movies.length];
+    int[] numOfActors = new int[movies.length];
+    int[] numOfDirectors = new int[movies.length];
+    List<Role> roles = new ArrayList<Role>();
+    for (int i=0 ; i < movies.length ; i++) {
+      Movie m = movies[i];
+      movieIds[i] = m.id;
+      movieNames[i] = stringIdx(m.name, stringsIdxs, strings);
+      movieYears[i] = m.year;
+      movieRanks[i] = m.rank;
+      numOfGenres[i] = m.genres.size();
+      numOfActors[i] = m.actors.size();
+      numOfDirectors[i] = m.directors.size();
+      roles.addAll(m.actors);
+    }
+
+    int[] genres = new int[sum(numOfGenres)];
+    int[] movieDirectors = new int[sum(numOfDirectors)];
+    for (int i=0, j=0, k=0 ; i < movies.length ; i++) {
+      for (Movie.Genre g : movies[i].genres)
+        genres[j++] = g.ordinal();
+      for (Director d : movies[i].directors)
+        movieDirectors[k++] = position(d, positions);
+    }
+
+    int[] roleActors = new int[roles.size()];
+    int[] roleDescrs = new int[roles.size()];
+    for (int i=0 ; i < roles.size() ; i++) {
+      Role r = roles.get(i);
+      positions.put(r, i);
+      roleActors[i] = position(r.actor, positions);
+      roleDescrs[i] = stringIdx(r.role, stringsIdxs, strings);
+    }
+
+    int[] actorIds = new int[actors.length];
+    int[] actorFirstNames = new int[actors.length];
+    int[] actorLastNames = new int[actors.length];
+    int[] actorGenders = new int[actors.length];
+    long[] actorRanksSums = new long[actors.length];
+    int[] actorRankedMovies = new int[actors.length];
+    int[] numOfRoles = new int[actors.length];
+    int[] actorRoles = new int[roles.size()];
+    for (int i=0, j=0 ; i < actors.length ; i++) {
+      Actor a = actors[i];
+      actorIds[i] = a.id;
+      actorFirstNames[i] = stringIdx(a.firstName, stringsIdxs, strings);
+      actorLastNames[i] = stringIdx(a.lastName, stringsIdxs, strings);
+      actorGenders[i] = a.gender.ordinal();
+      actorRanksSums[i] = a.sumOfMoviesRanks;
+      actorRankedMovies[i] = a.numOfRankedMovies;
+      numOfRoles[i] = a.roles.size();
+      for (Role r : a.roles)
+        actorRoles[j++] = position(r, positions);
+    }
+
+    int[] directorIds = new int[directors.length];
+    int[] directorFirstNames = new int[directors.length];
+    int[] directorLastNames = new int[directors.length];
+    long[] directorRanksSums = new long[directors.length];
+    int[] directorRankedMovies = new int[directors.length];
+    int[] numOfMovies = new int[directors.length];
+    int[] directorMovies = new int[movieDirectors.length];
+    for (int i=0, j=0 ; i < directors.length ; i++) {
+      Director d = directors[i];
+      directorIds[i] = d.id;
+      directorFirstNames[i] = stringIdx(d.firstName, stringsIdxs, strings);
+      directorLastNames[i] = stringIdx(d.lastName, stringsIdxs, strings);
+      directorRanksSums[i] = d.sumOfMoviesRanks;
+      directorRankedMovies[i] = d.numOfRankedMovies;
+      numOfMovies[i] = d.movies.size();
+      for (Movie m : d.movies)
+        directorMovies[j++] = position(m, positions);
+    }
+
+    int[][] byFirstName = nameIndexColumns(actorsByFirstName, positions, stringsIdxs, strings);
+    int[][] byLastName = nameIndexColumns(actorsByLastName, positions, stringsIdxs, strings);
+
+    out.writeInt(SNAPSHOT_MAGIC);
+    out.writeInt(SNAPSHOT_VERSION);
+
+    out.writeInt(strings.size());
+    int totalLength = 0;
+    for (String str : strings) {
+      out.writeInt(str != null ? str.length() : -1);
+      totalLength += str != null ? str.length() : 0;
+    }
+    out.writeInt(totalLength);
+    for (String str : strings)
+      if (str != null)
+        out.writeChars(str);
+
+    out.writeInt(movies.length);
+    writeInts(out, movieIds);
+    writeInts(out, movieNames);
+    writeInts(out, movieYears);
+    writeDoubles(out, movieRanks);
+    writeInts(out, numOfGenres);
+    writeInts(out, genres);
+
+    out.writeInt(actors.length);
+    writeInts(out, actorIds);
+    writeInts(out, actorFirstNames);
+    writeInts(out, actorLastNames);
+    writeInts(out, actorGenders);
+    writeLongs(out, actorRanksSums);
+    writeInts(out, actorRankedMovies);
+
+    out.writeInt(directors.length);
+    writeInts(out, directorIds);
+    writeInts(out, directorFirstNames);
+    writeInts(out, directorLastNames);
+    writeLongs(out, directorRanksSums);
+    writeInts(out, directorRankedMovies);
+
+    out.writeInt(roles.size());
+    writeInts(out, numOfActors);
+    writeInts(out, roleActors);
+    writeInts(out, roleDescrs);
+    writeInts(out, numOfRoles);
+    writeInts(out, actorRoles);
+
+    out.writeInt(movieDirectors.length);
+    writeInts(out, numOfDirectors);
+    writeInts(out, movieDirectors);
+    writeInts(out, numOfMovies);
+    writeInts(out, directorMovies);
+
+    for (int[][] index : new int[][][] {byFirstName, byLastName}) {
+      out.writeInt(index[0].length);
+      out.writeInt(index[2].length);
+      for (int[] column : index)
+        writeInts(out, column);
+    }
+  }
+
+  // Restores a snapshot written by save() into an empty database
+  public void load(ByteBuffer in) {
+    if (in.getInt() != SNAPSHOT_MAGIC || in.getInt() != SNAPSHOT_VERSION)
+      throw new RuntimeException();
+
+    names = new NameDictionary();
+
+    int[] lengths = readInts(in, in.getInt());
+    char[] chars = readChars(in, in.getInt());
+    String[] strings = new String[lengths.length];
+    for (int i=0, offset=0 ; i < lengths.length ; i++)
+      if (lengths[i] >= 0) {
+        strings[i] = new String(chars, offset, lengths[i]);
+        offset += lengths[i];
+      }
+
+    int count = in.getInt();
+    int[] ids = readInts(in, count);
+    int[] names = readInts(in, count);
+    int[] years = readInts(in, count);
+    double[] ranks = readDoubles(in, count);
+    int[] numOfGenres = readInts(in, count);
+    int[] genresOrds = readInts(in, sum(numOfGenres));
+    Movie.Genre[] genres = Movie.Genre.values();
+    Movie[] movies = new Movie[count];
+    this.movies = new IntTable<Movie>(count);
+    for (int i=0, j=0 ; i < count ; i++) {
+      Movie m = new Movie(ids[i], strings[names[i]], years[i], ranks[i]);
+      m.genres = new ArrayList<Movie.Genre>(numOfGenres[i]);
+      for (int k=0 ; k < numOfGenres[i] ; k++)
+        m.genres.add(genres[genresOrds[j++]]);
+      movies[i] = m;
+      this.movies.put(m.id, m);
+    }
+
+    count = in.getInt();
+    ids = readInts(in, count);
+    int[] firstNames = readInts(in, count);
+    int[] lastNames = readInts(in, count);
+    int[] genderOrds = readInts(in, count);
+    long[] actorRanksSums = readLongs(in, count);
+    int[] actorRankedMovies = readInts(in, count);
+    Actor.Gender[] genders = Actor.Gender.values();
+    Actor[] actors = new Actor[count];
+    this.actors = new IntTable<Actor>(count);
+    for (int i=0 ; i < count ; i++) {
+      Actor a = new Actor(ids[i], strings[firstNames[i]], strings[lastNames[i]], genders[genderOrds[i]]);
+      encodeNames(a);
+      actors[i] = a;
+      this.actors.put(a.id, a);
+    }
+
+    count = in.getInt();
+    ids = readInts(in, count);
+    firstNames = readInts(in, count);
+    lastNames = readInts(in, count);
+    long[] directorRanksSums = readLongs(in, count);
+    int[] directorRankedMovies = readInts(in, count);
+    Director[] directors = new Director[count];
+    this.directors = new IntTable<Director>(count);
+    for (int i=0 ; i < count ; i++) {
+      Director d = new Director(ids[i], strings[firstNames[i]], strings[lastNames[i]]);
+      encodeNames(d);
+      directors[i] = d;
+      this.directors.put(d.id, d);
+    }
+
+    // Roles are created in the order they appear in the movies' lists, and
+    // then the actors' lists are refilled in their original order
+    count = in.getInt();
+    int[] numOfActors = readInts(in, movies.length);
+    int[] roleActors = readInts(in, count);
+    int[] roleDescrs = readInts(in, count);
+    int[] numOfRoles = readInts(in, actors.length);
+    int[] actorRoles = readInts(in, count);
+    Role[] roles = new Role[count];
+    for (int i=0 ; i < actors.length ; i++)
+      actors[i].roles = new ArrayList<Role>(numOfRoles[i]);
+    for (int i=0, j=0 ; i < movies.length ; i++) {
+      movies[i].actors = new ArrayList<Role>(numOfActors[i]);
+      for (int k=0 ; k < numOfActors[i] ; k++, j++)
+        roles[j] = new Role(movies[i], actors[roleActors[j]], strings[roleDescrs[j]]);
+    }
+    for (int i=0, j=0 ; i < actors.length ; i++) {
+      ArrayList<Role> actorRolesList = actors[i].roles;
+      actorRolesList.clear();
+      for (int k=0 ; k < numOfRoles[i] ; k++)
+        actorRolesList.add(roles[actorRoles[j++]]);
+    }
+
+    // Same for the links between movies and directors, which
+    // are created following the order of the directors' lists
+    count = in.getInt();
+    int[] numOfDirectors = readInts(in, movies.length);
+    int[] movieDirectors = readInts(in, count);
+    int[] numOfMovies = readInts(in, directors.length);
+    int[] directorMovies = readInts(in, count);
+    for (int i=0 ; i < movies.length ; i++)
+      movies[i].directors = new ArrayList<Director>(numOfDirectors[i]);
+    for (int i=0, j=0 ; i < directors.length ; i++) {
+      directors[i].movies = new ArrayList<Movie>(numOfMovies[i]);
+      for (int k=0 ; k < numOfMovies[i] ; k++)
+        directors[i].add(movies[directorMovies[j++]]);
+    }
+    for (int i=0, j=0 ; i < movies.length ; i++) {
+      ArrayList<Director> movieDirectorsList = movies[i].directors;
+      movieDirectorsList.clear();
+      for (int k=0 ; k < numOfDirectors[i] ; k++)
+        movieDirectorsList.add(directors[movieDirectors[j++]]);
+    }
+
+    // The rank aggregates have already been computed while linking the
+    // entities, but the saved ones may differ in their rounding errors
+    for (int i=0 ; i < actors.length ; i++) {
+      actors[i].sumOfMoviesRanks = actorRanksSums[i];
+      actors[i].numOfRankedMovies = actorRankedMovies[i];
+    }
+    for (int i=0 ; i < directors.length ; i++) {
+      directors[i].sumOfMoviesRanks = directorRanksSums[i];
+      directors[i].numOfRankedMovies = directorRankedMovies[i];
+    }
+
+    actorsByFirstName = readNameIndex(in, actors, strings);
+    actorsByLastName = readNameIndex(in, actors, strings);
+
+    nameGroups = new IntTable<NameGroup>(this.names.size());
+    for (Actor a : actors)
+      addToNameGroup(a);
+  }
+
+  // Name codes are not saved: the keys of the name indexes are written as strings,
+  // and the codes are assigned again, in a different order, when they are read
+  int[][] nameIndexColumns(IntTable<Set<Actor>> index, Map<Object, Integer> positions, Map<String, Integer> stringsIdxs, List<String> strings) {
+    int numOfMembers = 0;
+    for (int code=0 ; code < index.capacity() ; code++)
+      if (index.get(code) != null)
+        numOfMembers += index.get(code).size();
+    int[] keys = new int[index.size()];
+    int[] sizes = new int[index.size()];
+    int[] members = new int[numOfMembers];
+    for (int code=0, i=0, j=0 ; code < index.capacity() ; code++) {
+      Set<Actor> set = index.get(code);
+      if (set == null)
+        continue;
+      keys[i] = stringIdx(names.name(code), stringsIdxs, strings);
+      sizes[i++] = set.size();
+      for (Actor a : set)
+        members[j++] = position(a, positions);
+    }
+    return new int[][] {keys, sizes, members};
+  }
+
+  IntTable<Set<Actor>> readNameIndex(ByteBuffer in, Actor[] actors, String[] strings) {
+    int count = in.getInt();
+    int numOfMembers = in.getInt();
+    int[] keys = readInts(in, count);
+    int[] sizes = readInts(in, count);
+    int[] members = readInts(in, numOfMembers);
+    IntTable<Set<Actor>> index = new IntTable<Set<Actor>>(names.size());
+    for (int i=0, j=0 ; i < count ; i++) {
+      // Large enough to hold all the actors without rehashing
+      Set<Actor> set = new HashSet<Actor>((int) (sizes[i] / 0.75f) + 1);
+      for (int k=0 ; k < sizes[i] ; k++)
+        set.add(actors[members[j++]]);
+      index.put(names.encode(strings[keys[i]]), set);
+    }
+    return index;
+  }
+
+  static <V> V[] values(IntTable<V> table, V[] values) {
+    for (int id=0, i=0 ; id < table.capacity() ; id++) {
+      V value = table.get(id);
+      if (value != null)
+        values[i++] = value;
+    }
+    return values;
+  }
+
+  static int stringIdx(String str, Map<String, Integer> stringsIdxs, List<String> strings) {
+    Integer idx = stringsIdxs.get(str);
+    if (idx == null) {
+      idx = strings.size();
+      strings.add(str);
+      stringsIdxs.put(str, idx);
+    }
+    return idx;
+  }
+
+  static int position(Object obj, Map<Object, Integer> positions) {
+    Integer position = positions.get(obj);
+    if (position == null)
+      throw new RuntimeException();
+    return position;
+  }
+
+  static int sum(int[] values) {
+    int sum = 0;
+    for (int i=0 ; i < values.length ; i++)
+      sum += values[i];
+    return sum;
+  }
+
+  static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    for (int i=0 ; i < values.length ; i++)
+      out.writeInt(values[i]);
+  }
+
+  static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+    for (int i=0 ; i < values.length ; i++)
+      out.writeLong(values[i]);
+  }
+
+  static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+    for (int i=0 ; i < values.length ; i++)
+      out.writeDouble(values[i]);
+  }
+
+  static int[] readInts(ByteBuffer in, int count) {
+    int[] values = new int[count];
+    in.asIntBuffer().get(values);
+    in.position(in.position() + 4 * count);
+    return values;
+  }
+
+  static long[] readLongs(ByteBuffer in, int count) {
+    long[] values = new long[count];
+    in.asLongBuffer().get(values);
+    in.position(in.position() + 8 * count);
+    return values;
+  }
+
+  static double[] readDoubles(ByteBuffer in, int count) {
+    double[] values = new double[count];
+    in.asDoubleBuffer().get(values);
+    in.position(in.position() + 8 * count);
+    return values;
+  }
+
+  static char[] readChars(ByteBuffer in, int count) {
+    char[] chars = new char[count];
+    in.asCharBuffer().get(chars);
+    in.position(in.position() + 2 * count);
+    return chars;
+  }
 }